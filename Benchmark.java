@@ -0,0 +1,218 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.m7n.lightify.Connection;
+import se.m7n.lightify.FramePool;
+import se.m7n.lightify.GatewaySimulator;
+import se.m7n.lightify.Group;
+import se.m7n.lightify.Light;
+import se.m7n.lightify.StatusCursor;
+import se.m7n.lightify.StatusDecoder;
+
+/*
+ * Usage:
+ *   Benchmark [filter]
+ *
+ * Times the encoding, decoding and registry hot paths, against an
+ * in-process GatewaySimulator where a gateway is needed, and prints the
+ * time and the bytes allocated per operation. Allocation is counted on
+ * every thread but the simulator's, so it includes the reader thread.
+ * Only cases whose name contains filter are run.
+ */
+public class Benchmark
+{
+    static final long WARMUP = 1000000000L;
+    static final long MEASURE = 2000000000L;
+
+    // Most lights a status response can carry
+    static final int MAX_LIGHTS = GatewaySimulator.MAX_STATUS_RECORDS;
+
+    interface Op
+    {
+        void run() throws Exception;
+    }
+
+    // Keeps results alive so the JIT cannot drop the work
+    static volatile long sSink;
+
+    static String sFilter;
+
+    public static void main(String[] args) throws Exception
+    {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        sFilter = args.length > 0 ? args[0] : "";
+
+        benchFrames();
+        for (int lights : new int[] { 10, 500, 5000 }) {
+            benchDecode(lights);
+        }
+        for (int lights : new int[] { 10, 500, MAX_LIGHTS }) {
+            benchGateway(lights);
+        }
+    }
+
+    static void benchFrames() throws Exception
+    {
+        try (GatewaySimulator sim = new GatewaySimulator(0, 10, 1)) {
+            Connection conn = new Connection(sim.address(), sim.port(), null);
+            Light light = new Light(conn, GatewaySimulator.BASE_ADDRESS, "light0");
+            FramePool pool = conn.framePool();
+            byte[] frame = new byte[22];
+
+            bench("encode.buildBasicCommand", () -> {
+                    sSink += conn.buildBasicCommand((byte)0, Connection.COMMAND_ONOFF, 0x1234L, new byte[] { 1 }).limit();
+                });
+            bench("encode.buildColor", () -> {
+                    sSink += conn.buildColor(light, (byte)1, (byte)2, (byte)3, (short)0).limit();
+                });
+            bench("encode.buildTemp", () -> {
+                    sSink += conn.buildTemp(light, (short)2700, (short)0).limit();
+                });
+            bench("encode.encodeColor", () -> {
+                    ByteBuffer data = pool.acquire();
+                    conn.encodeColor(data, light, (byte)1, (byte)2, (byte)3, (short)0);
+                    sSink += data.position();
+                    pool.release(data);
+                });
+            bench("toHexString", () -> {
+                    sSink += Connection.toHexString(frame).length();
+                });
+            conn.close();
+        }
+    }
+
+    /**
+     * Decode a status response from memory, in socket sized chunks. A
+     * real response stops at 1560 lights, so larger fleets only exist
+     * here; the u16 count still fits.
+     **/
+    static void benchDecode(int lights) throws Exception
+    {
+        ByteBuffer frame = statusFrame(lights);
+        ByteBuffer chunk = frame.duplicate();
+        StatusDecoder decoder = new StatusDecoder(status -> {
+                sSink += status.lum() + (status.on() ? 1 : 0);
+            });
+
+        bench("status.decode/" + lights, () -> {
+                for (int pos = 0; pos < frame.limit(); pos += 4096) {
+                    chunk.limit(Math.min(pos + 4096, frame.limit()));
+                    chunk.position(pos);
+                    decoder.feed(chunk);
+                }
+                decoder.end();
+            });
+    }
+
+    static ByteBuffer statusFrame(int lights)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(11 + lights * StatusCursor.RECORD_SIZE);
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Format: <H2BIBH, then one 42 byte record per light
+        frame.putShort((short)Math.min(frame.capacity() - 2, 0xffff));
+        frame.put((byte)2);
+        frame.put(Connection.COMMAND_ALL_LIGHT_STATUS);
+        frame.putInt(1);
+        frame.put((byte)0);
+        frame.putShort((short)lights);
+        for (int i = 0; i < lights; i++) {
+            int pos = frame.position();
+            frame.putShort((short)i);
+            frame.putLong(GatewaySimulator.BASE_ADDRESS + i);
+            frame.put(pos + 10, (byte)2);
+            frame.put(pos + 15, (byte)2);
+            frame.put(pos + 18, (byte)(i & 1));
+            frame.put(pos + 19, (byte)100);
+            frame.putShort(pos + 20, (short)2700);
+            frame.put(pos + 26, (byte)'l');
+            frame.position(pos + StatusCursor.RECORD_SIZE);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    static void benchGateway(int lights) throws Exception
+    {
+        try (GatewaySimulator sim = new GatewaySimulator(0, lights, Math.min(lights, 255))) {
+            Connection conn = new Connection(sim.address(), sim.port(), null);
+            conn.refresh();
+
+            ArrayList<Light.Address> addrs = new ArrayList<Light.Address>();
+            for (Light light : conn.lights().values()) {
+                addrs.add(light.addr());
+            }
+            Light.Address[] keys = addrs.toArray(new Light.Address[addrs.size()]);
+            String last = "light" + (lights - 1);
+            int[] next = new int[1];
+
+            bench("status.refresh/" + lights, () -> {
+                    sSink += conn.updateAllLightStatus();
+                });
+            bench("groupList/" + conn.groups().size(), () -> {
+                    sSink += conn.groupList().size();
+                });
+            bench("lightByName/" + lights, () -> {
+                    sSink += conn.lightByName(last).slot();
+                });
+            bench("light(Address)/" + lights, () -> {
+                    next[0] = (next[0] + 1) % keys.length;
+                    sSink += conn.light(keys[next[0]]).slot();
+                });
+            conn.close();
+        }
+    }
+
+    static void bench(String name, Op op) throws Exception
+    {
+        if (!name.contains(sFilter))
+            return;
+
+        run(op, WARMUP);
+
+        long bytes = allocated();
+        long start = System.nanoTime();
+        long ops = run(op, MEASURE);
+        long time = System.nanoTime() - start;
+        bytes = allocated() - bytes;
+
+        System.out.printf("%-28s %14.1f ns/op %12.1f B/op%n", name,
+                          (double)time / ops, (double)bytes / ops);
+    }
+
+    static long run(Op op, long nanos) throws Exception
+    {
+        long end = System.nanoTime() + nanos;
+        long ops = 0;
+
+        do {
+            for (int i = 0; i < 100; i++) {
+                op.run();
+            }
+            ops += 100;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    /** Bytes allocated so far by every thread but the simulator's. **/
+    static long allocated()
+    {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        long total = 0;
+
+        for (int i = 0; i < ids.length; i++) {
+            if (infos[i] != null && !infos[i].getThreadName().startsWith("gateway-simulator") && bytes[i] > 0)
+                total += bytes[i];
+        }
+        return total;
+    }
+}
@@ -1,15 +1,79 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 import se.m7n.lightify.Connection;
 import se.m7n.lightify.Luminary;
 
+/*
+ * Usage:
+ *   Lightify <gateway> <name> on|off|lum|temp|col [args...]
+ *   Lightify -d           run as daemon, keeping gateway connections warm
+ *
+ * The name is a light or a group, matched exactly, ignoring case, or
+ * as the prefix of a single name, see Connection.resolve.
+ *
+ * Commands are forwarded to a daemon listening on the loopback port if
+ * one is running, and sent directly to the gateway otherwise. Both sides
+ * take the port from the lightify.daemon.port system property, else the
+ * LIGHTIFY_DAEMON_PORT environment variable, else DAEMON_PORT.
+ */
 public class Lightify
 {
+    // Topology snapshots younger than this are trusted without a refresh
+    static final long TOPOLOGY_MAX_AGE = 10 * 60 * 1000;
+
+    static final int DAEMON_PORT = 4040;
+    static final String DAEMON_PORT_PROPERTY = "lightify.daemon.port";
+    static final String DAEMON_PORT_ENV = "LIGHTIFY_DAEMON_PORT";
+
+    // Milliseconds; a daemon slower than this is taken to be wedged
+    static final int FORWARD_CONNECT_TIMEOUT = 1000;
+    static final int FORWARD_READ_TIMEOUT = (int)Connection.DEFAULT_TIMEOUT + 1000;
+
+    // Serializes opening daemon connections; a lock, not a monitor, as it is held while connecting
+    static final ReentrantLock OPEN_LOCK = new ReentrantLock();
+
     public static void main(String[] args) throws IOException
     {
         System.out.println("Lightify");
 
+        if (args[0].equals("-d")) {
+            daemon(daemonPort());
+            return;
+        }
+
+        String reply = forward(args);
+        if (reply == null) {
+            direct(args);
+        } else if (!reply.equals("ok")) {
+            System.err.println(reply);
+            System.exit(1);
+        }
+        return;
+    }
+
+    static void direct(String[] args) throws IOException
+    {
         String addr = args[0];
         String groupname = args[1];
         String command = args[2];
@@ -17,36 +81,204 @@ public class Lightify
         //print "'%s' '%s' '%s'" % (addr, groupname, command)
 
         Connection conn = new Connection(InetAddress.getByName(addr));
-
-        conn.updateAllLightStatus();
-        conn.updateGroupList();
+        Path topology = topologyFile(addr);
+        boolean stale = loadTopology(conn, topology);
 
         //#item = conn.groups()[groupname];
-        Luminary item = conn.lightByName(groupname);
+        Luminary item = conn.resolve(groupname);
+
+        if (item == null) {
+            item = discover(conn, topology, groupname);
+            stale = false;
+        }
+
+        // The command goes out first; the refresh runs alongside it and is only awaited before exit
+        CompletableFuture<ByteBuffer> sent = runAsync(item, command, args);
+        CompletableFuture<Void> refreshed = stale ? conn.refreshTopologyAsync(topology) : null;
+        try {
+            Connection.await(sent);
+        } finally {
+            if (refreshed != null) {
+                try {
+                    Connection.await(refreshed);
+                } catch (IOException e) {
+                    System.err.println("Topology refresh failed: " + e);
+                }
+            }
+        }
+
+        //#conn.update_light_status(item)
+        conn.close();
+    }
+
+    /** Loopback port of the daemon, the same for the daemon and its clients. **/
+    static int daemonPort()
+    {
+        String port = System.getProperty(DAEMON_PORT_PROPERTY);
+        if (port == null)
+            port = System.getenv(DAEMON_PORT_ENV);
+        return port != null ? Integer.parseInt(port.trim()) : DAEMON_PORT;
+    }
+
+    /**
+     * Send args to a running daemon and return its reply, or null if
+     * there is none or it does not answer in time.
+     **/
+    static String forward(String[] args) throws IOException
+    {
+        Socket sock = new Socket();
+        try {
+            sock.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), daemonPort()),
+                         FORWARD_CONNECT_TIMEOUT);
+            sock.setSoTimeout(FORWARD_READ_TIMEOUT);
+
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+
+            out.print(String.join("\t", args) + "\n");
+            out.flush();
+            return in.readLine();
+        } catch (ConnectException e) {
+            return null;
+        } catch (SocketTimeoutException e) {
+            System.err.println("Daemon not answering, sending directly");
+            return null;
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * Accept one tab separated command line per request on the loopback
+     * port and answer "ok" or "error <message>". Connections are opened
+     * on first use and kept for later commands, which may use them
+     * concurrently. Each one shows up in JMX as a GatewayStats bean.
+     **/
+    static void daemon(int port) throws IOException
+    {
+        ConcurrentHashMap<String,Connection> conns = new ConcurrentHashMap<String,Connection>();
+        ExecutorService pool = Executors.newCachedThreadPool();
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+        System.out.println("Listening on " + server.getLocalSocketAddress());
+        while (true) {
+            Socket client = server.accept();
+            pool.execute(() -> serve(client, conns));
+        }
+    }
+
+    static void serve(Socket client, ConcurrentHashMap<String,Connection> conns)
+    {
+        try (Socket sock = client) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(sock.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                try {
+                    execute(conns, line.split("\t"));
+                    out.print("ok\n");
+                } catch (IOException|RuntimeException e) {
+                    out.print("error " + e + "\n");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("client: " + e);
+        }
+    }
+
+    static void execute(ConcurrentHashMap<String,Connection> conns, String[] args) throws IOException
+    {
+        String addr = args[0];
+        Path topology = topologyFile(addr);
+        Connection conn = conns.get(addr);
+
+        if (conn == null) {
+            OPEN_LOCK.lock();
+            try {
+                conn = conns.get(addr);
+                if (conn == null) {
+                    conn = new Connection(InetAddress.getByName(addr));
+                    conn.stats().register();
+                    if (loadTopology(conn, topology))
+                        conn.refreshTopologyAsync(topology);
+                    conns.put(addr, conn);
+                }
+            } finally {
+                OPEN_LOCK.unlock();
+            }
+        }
 
+        // A failed command keeps the connection; it reconnects by itself if the link is lost
+        Luminary item = conn.resolve(args[1]);
+        if (item == null)
+            item = discover(conn, topology, args[1]);
+        run(item, args[2], args);
+    }
+
+    static Path topologyFile(String addr)
+    {
+        return Paths.get(System.getProperty("user.home"), ".cache", "jlightify",
+                         addr + ".topology");
+    }
+
+    /** Load the topology snapshot, returning whether it needs a refresh. **/
+    static boolean loadTopology(Connection conn, Path topology)
+    {
+        try {
+            conn.loadTopology(topology);
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(topology).toMillis();
+            return age > TOPOLOGY_MAX_AGE;
+        } catch (NoSuchFileException e) {
+        } catch (IOException e) {
+            System.err.println("Ignoring topology " + topology + ": " + e);
+        }
+        return true;
+    }
+
+    /** Unknown name, or no snapshot; discover before sending. **/
+    static Luminary discover(Connection conn, Path topology, String name) throws IOException
+    {
+        conn.refresh();
+        conn.saveTopology(topology);
+
+        Luminary item = conn.resolve(name);
+        if (item == null)
+            throw new IllegalArgumentException("No light or group named '" + name + "'");
+        return item;
+    }
+
+    static void run(Luminary item, String command, String[] args) throws IOException
+    {
+        Connection.await(runAsync(item, command, args));
+    }
+
+    /** Send the command without waiting for the gateway to answer it. **/
+    static CompletableFuture<ByteBuffer> runAsync(Luminary item, String command, String[] args)
+    {
         if (command.equals("on"))
-            item.setOnOff(true);
+            return item.setOnOffAsync(true);
         else if (command.equals("off"))
-            item.setOnOff(false);
+            return item.setOnOffAsync(false);
         else if (command.equals("lum")) {
             byte lum = Byte.parseByte(args[3]);
             short time = Short.parseShort(args[4]);
 
-            item.setLuminance(lum, time);
+            return item.setLuminanceAsync(lum, time);
         } else if (command.equals("temp")) {
             short temp = Short.parseShort(args[3]);
             short time = Short.parseShort(args[4]);
 
-            item.setTemperature(temp, time);
+            return item.setTemperatureAsync(temp, time);
         } else if (command.equals("col")) {
             short r = Short.parseShort(args[3]);
             short g = Short.parseShort(args[4]);
             short b = Short.parseShort(args[5]);
             short time = Short.parseShort(args[6]);
 
-            item.setRgb((byte)r, (byte)g, (byte)b, time);
+            return item.setRgbAsync((byte)r, (byte)g, (byte)b, time);
         }
-        //#conn.update_light_status(item)
-        return;
+        return CompletableFuture.completedFuture(null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,324 @@
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import se.m7n.lightify.Connection;
+import se.m7n.lightify.GatewaySimulator;
+import se.m7n.lightify.LatencyHistogram;
+import se.m7n.lightify.Light;
+
+/*
+ * Usage:
+ *   LoadTest <gateway>|-sim <lights> [options]
+ *
+ * Options:
+ *   -port <port>            gateway port, 4000 by default
+ *   -rate <ops/s>           open loop at a target rate, latency counted
+ *                           from when each operation was due
+ *   -threads <n>            closed loop, n threads back to back (default 4)
+ *   -mix on=4,lum=3,col=2,light=1,status=0
+ *                           relative weights of the operations
+ *   -duration <s>           0 runs until killed (default 60)
+ *   -report <s>             seconds between interval reports (default 10)
+ *   -latency <ms>           simulator response latency (default 0)
+ *
+ * Prints throughput and p50/p99/p99.9/max latency per operation for each
+ * interval and for the whole run, together with heap use and requests
+ * in flight so slow leaks show up over long runs.
+ */
+public class LoadTest
+{
+    static final String[] OPS = { "on", "lum", "col", "light", "status" };
+
+    static Connection sConn;
+    static Light[] sLights;
+    static int[] sWeights = { 4, 3, 2, 1, 0 };
+    static LatencyHistogram[] sIntervals = new LatencyHistogram[OPS.length];
+    static LatencyHistogram[] sTotals = new LatencyHistogram[OPS.length];
+    static LongAdder[] sErrors = new LongAdder[OPS.length];
+    static long[] sTotalErrors = new long[OPS.length];
+
+    public static void main(String[] args) throws Exception
+    {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        if (args.length == 0)
+            usage(null);
+
+        String gateway = args[0];
+        int simLights = 0;
+        int port = Connection.PORT;
+        double rate = 0;
+        int threads = 4;
+        long duration = 60;
+        long report = 10;
+        int latency = 0;
+
+        // Every option takes a value; check them all before starting anything
+        try {
+            int i = 1;
+            if (gateway.equals("-sim")) {
+                if (args.length < 2)
+                    throw new IllegalArgumentException("-sim needs a number of lights");
+                simLights = Integer.parseInt(args[1]);
+                if (simLights < 1)
+                    throw new IllegalArgumentException("-sim needs at least one light");
+                i = 2;
+            }
+            for (; i < args.length; i += 2) {
+                if (i + 1 == args.length)
+                    throw new IllegalArgumentException("Option " + args[i] + " needs a value");
+                String value = args[i + 1];
+
+                if (args[i].equals("-port"))
+                    port = Integer.parseInt(value);
+                else if (args[i].equals("-rate"))
+                    rate = Double.parseDouble(value);
+                else if (args[i].equals("-threads"))
+                    threads = Integer.parseInt(value);
+                else if (args[i].equals("-mix"))
+                    parseMix(value);
+                else if (args[i].equals("-duration"))
+                    duration = Long.parseLong(value);
+                else if (args[i].equals("-report"))
+                    report = Long.parseLong(value);
+                else if (args[i].equals("-latency"))
+                    latency = Integer.parseInt(value);
+                else
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+            if (threads < 1 || report < 1)
+                throw new IllegalArgumentException("-threads and -report must be at least 1");
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+        }
+
+        for (int op = 0; op < OPS.length; op++) {
+            sIntervals[op] = new LatencyHistogram();
+            sTotals[op] = new LatencyHistogram();
+            sErrors[op] = new LongAdder();
+        }
+
+        GatewaySimulator sim = null;
+        InetAddress host;
+        if (simLights > 0) {
+            sim = new GatewaySimulator(0, simLights, Math.min(simLights, 16));
+            sim.setLatency(latency, 0);
+            host = sim.address();
+            port = sim.port();
+        } else {
+            host = InetAddress.getByName(gateway);
+        }
+
+        sConn = new Connection(host, port, null);
+        sConn.updateAllLightStatus();
+        sLights = lights();
+        if (sLights.length == 0)
+            throw new IOException("Gateway reports no lights");
+        System.out.println("Load on " + host.getHostAddress() + ":" + port + ", "
+                           + sLights.length + " lights, "
+                           + (rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop, " + threads + " threads"));
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(threads + 1);
+        if (rate > 0) {
+            long period = (long)(1000000000L / rate);
+            long start = System.nanoTime();
+            executor.scheduleAtFixedRate(new Runnable() {
+                    long mDue = start;
+
+                    public void run()
+                    {
+                        // Count from when the operation was due, not when it ran
+                        long due = mDue;
+                        mDue += period;
+                        int op = pick();
+                        CompletableFuture<?> future;
+                        try {
+                            future = start(op);
+                        } catch (RuntimeException e) {
+                            sErrors[op].increment();
+                            return;
+                        }
+                        future.whenComplete((res, e) -> done(op, due, e));
+                    }
+                }, 0, period, TimeUnit.NANOSECONDS);
+        } else {
+            for (int t = 0; t < threads; t++) {
+                executor.execute(() -> {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            int op = pick();
+                            long begin = System.nanoTime();
+                            CompletableFuture<?> future = null;
+                            Throwable error = null;
+                            try {
+                                future = start(op);
+                                Connection.await(future);
+                            } catch (InterruptedIOException e) {
+                                // Stopped; count the request when it completes
+                                future.whenComplete((res, e2) -> done(op, begin, e2));
+                                break;
+                            } catch (IOException|RuntimeException e) {
+                                error = e;
+                            }
+                            done(op, begin, error);
+                        }
+                    });
+            }
+        }
+
+        long begin = System.nanoTime();
+        long end = duration > 0 ? begin + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+        long last = begin;
+        while (System.nanoTime() < end) {
+            long wait = Math.min(TimeUnit.SECONDS.toNanos(report), end - System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(Math.max(wait, 0));
+            long now = System.nanoTime();
+            report("interval", sIntervals, now - last, true);
+            last = now;
+        }
+
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        // Requests still out complete or time out, and count in the total
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sConn.timeout() + 1000);
+        while ((sConn.inFlight() > 0 || sConn.queued() > 0) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long now = System.nanoTime();
+        report("drain", sIntervals, now - last, true);
+        report("total", sTotals, now - begin, false);
+        sConn.close();
+        if (sim != null)
+            sim.close();
+    }
+
+    static void usage(String error)
+    {
+        if (error != null)
+            System.err.println(error);
+        System.err.println("Usage: LoadTest <gateway>|-sim <lights> [-port <port>] [-rate <ops/s>] [-threads <n>]");
+        System.err.println("                [-mix on=4,lum=3,col=2,light=1,status=0] [-duration <s>] [-report <s>]");
+        System.err.println("                [-latency <ms>]");
+        System.exit(1);
+    }
+
+    /** Set the weights from mix; at least one must be positive, none negative. **/
+    static void parseMix(String mix)
+    {
+        int[] weights = new int[OPS.length];
+        int total = 0;
+
+        for (String part : mix.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2)
+                throw new IllegalArgumentException("Bad mix entry '" + part + "', expected op=weight");
+            int op = 0;
+            while (op < OPS.length && !OPS[op].equals(kv[0])) {
+                op++;
+            }
+            if (op == OPS.length)
+                throw new IllegalArgumentException("Unknown operation " + kv[0]);
+            weights[op] = Integer.parseInt(kv[1]);
+            if (weights[op] < 0)
+                throw new IllegalArgumentException("Negative weight for " + kv[0]);
+            total += weights[op];
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("Mix " + mix + " has no positive weight");
+        sWeights = weights;
+    }
+
+    static Light[] lights()
+    {
+        ArrayList<Light> lights = new ArrayList<Light>();
+        for (Light light : sConn.lights().values()) {
+            lights.add(light);
+        }
+        return lights.toArray(new Light[lights.size()]);
+    }
+
+    static int pick()
+    {
+        int total = 0;
+        for (int weight : sWeights) {
+            total += weight;
+        }
+
+        int r = ThreadLocalRandom.current().nextInt(total);
+        int op = 0;
+        while (r >= sWeights[op]) {
+            r -= sWeights[op];
+            op++;
+        }
+        return op;
+    }
+
+    static CompletableFuture<?> start(int op)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Light light = sLights[random.nextInt(sLights.length)];
+
+        switch (op) {
+        case 0:
+            return light.setOnOffAsync(random.nextBoolean());
+        case 1:
+            return light.setLuminanceAsync((byte)random.nextInt(101), (short)0);
+        case 2:
+            return light.setRgbAsync((byte)random.nextInt(256), (byte)random.nextInt(256),
+                                     (byte)random.nextInt(256), (short)0);
+        case 3:
+            return sConn.updateLightStatusAsync(light);
+        default:
+            return sConn.updateAllLightStatusAsync();
+        }
+    }
+
+    static void done(int op, long begin, Throwable error)
+    {
+        if (error != null) {
+            sErrors[op].increment();
+            return;
+        }
+        sIntervals[op].record(System.nanoTime() - begin);
+    }
+
+    static void report(String title, LatencyHistogram[] histograms, long nanos, boolean interval)
+    {
+        Runtime rt = Runtime.getRuntime();
+        double seconds = nanos / 1e9;
+
+        System.out.printf("%s %.0fs  heap %d MiB  in flight %d%n", title, seconds,
+                          (rt.totalMemory() - rt.freeMemory()) >> 20, sConn.inFlight());
+        for (int op = 0; op < OPS.length; op++) {
+            LatencyHistogram histogram = histograms[op];
+            long errors;
+
+            if (interval) {
+                histogram = histogram.interval();
+                sTotals[op].add(histogram);
+                errors = sErrors[op].sumThenReset();
+                sTotalErrors[op] += errors;
+            } else {
+                errors = sTotalErrors[op];
+            }
+            if (histogram.count() == 0 && errors == 0)
+                continue;
+
+            System.out.printf("  %-7s %9.1f ops/s  p50 %8.3f  p99 %8.3f  p99.9 %8.3f  max %8.3f ms  errors %d%n",
+                              OPS[op], histogram.count() / seconds,
+                              histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6,
+                              histogram.percentile(99.9) / 1e6, histogram.max() / 1e6, errors);
+        }
+    }
+}
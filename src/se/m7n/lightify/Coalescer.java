@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional layer between the Luminary setters and a Connection that
+ * keeps only the latest value per luminary and command, and sends the
+ * pending values at most at a fixed rate. A value replaced before its
+ * turn is never sent; its callers get the result of the value that
+ * replaced it. The latency to the final value is bounded by the number
+ * of pending luminary/command pairs times the send interval. Nothing
+ * is scheduled while nothing is pending.
+ *
+ * Install with Connection.setCoalescer. Values pending in a coalescer
+ * that is replaced are still sent by it.
+ **/
+public class Coalescer implements Closeable
+{
+    private static final int ONOFF = 0;
+    private static final int LUMINANCE = 1;
+    private static final int TEMPERATURE = 2;
+    private static final int COLOUR = 3;
+
+    private static ScheduledExecutorService sScheduler;
+
+    /** Latest value of one command for one luminary. **/
+    static final class Entry
+    {
+        final Luminary mItem;
+        final int mKind;
+        boolean mQueued;
+        boolean mOn;
+        byte mLum;
+        short mTemp;
+        byte mR;
+        byte mG;
+        byte mB;
+        short mTime;
+        CompletableFuture<ByteBuffer> mFuture;
+
+        Entry(Luminary item, int kind)
+        {
+            mItem = item;
+            mKind = kind;
+        }
+    }
+
+    private Connection mConn;
+    private ScheduledExecutorService mScheduler;
+    private long mPeriod;
+    private IdentityHashMap<Luminary,Entry[]> mPending;
+    private ArrayDeque<Entry> mQueue;
+    private ScheduledFuture<?> mTick;
+    private long mLastSent;
+    private boolean mClosed;
+
+    /** Send at most framesPerSecond coalesced frames to conn. **/
+    public Coalescer(Connection conn, double framesPerSecond)
+    {
+        this(conn, framesPerSecond, scheduler());
+    }
+
+    public Coalescer(Connection conn, double framesPerSecond, ScheduledExecutorService scheduler)
+    {
+        long period = (long)(1000000000L / framesPerSecond);
+        if (!(framesPerSecond > 0) || period <= 0)
+            throw new IllegalArgumentException("Bad rate " + framesPerSecond + " frames/s");
+
+        mConn = conn;
+        mScheduler = scheduler;
+        mPeriod = period;
+        mPending = new IdentityHashMap<Luminary,Entry[]>();
+        mQueue = new ArrayDeque<Entry>();
+        mLastSent = System.nanoTime() - period;
+    }
+
+    private static synchronized ScheduledExecutorService scheduler()
+    {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "lightify-coalescer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+        return sScheduler;
+    }
+
+    /** Number of luminary/command pairs waiting to be sent. **/
+    public synchronized int pending()
+    {
+        return mQueue.size();
+    }
+
+    /**
+     * Stop the rate limit and send everything still pending right away.
+     * Values set later are sent as they come.
+     **/
+    public void close()
+    {
+        synchronized (this) {
+            mClosed = true;
+            // A tick already running clears mTick itself
+            if (mTick != null && mTick.cancel(false))
+                mTick = null;
+        }
+        while (sendNext()) {
+        }
+    }
+
+    // Called with the lock held; at most one tick is scheduled at a time
+    private void schedule()
+    {
+        if (mTick != null || mQueue.isEmpty())
+            return;
+
+        long delay = mClosed ? 0 : mLastSent + mPeriod - System.nanoTime();
+        mTick = mScheduler.schedule(() -> tick(), Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+
+    private void tick()
+    {
+        sendNext();
+        synchronized (this) {
+            mTick = null;
+            schedule();
+        }
+    }
+
+    CompletableFuture<ByteBuffer> setOnOff(Luminary item, boolean on)
+    {
+        synchronized (this) {
+            Entry entry = entry(item, ONOFF);
+            entry.mOn = on;
+            return queue(entry);
+        }
+    }
+
+    CompletableFuture<ByteBuffer> setLuminance(Luminary item, byte lum, short time)
+    {
+        synchronized (this) {
+            Entry entry = entry(item, LUMINANCE);
+            entry.mLum = lum;
+            entry.mTime = time;
+            return queue(entry);
+        }
+    }
+
+    CompletableFuture<ByteBuffer> setTemperature(Luminary item, short temp, short time)
+    {
+        synchronized (this) {
+            Entry entry = entry(item, TEMPERATURE);
+            entry.mTemp = temp;
+            entry.mTime = time;
+            return queue(entry);
+        }
+    }
+
+    CompletableFuture<ByteBuffer> setRgb(Luminary item, byte r, byte g, byte b, short time)
+    {
+        synchronized (this) {
+            Entry entry = entry(item, COLOUR);
+            entry.mR = r;
+            entry.mG = g;
+            entry.mB = b;
+            entry.mTime = time;
+            return queue(entry);
+        }
+    }
+
+    private Entry entry(Luminary item, int kind)
+    {
+        Entry[] entries = mPending.get(item);
+        if (entries == null) {
+            entries = new Entry[4];
+            mPending.put(item, entries);
+        }
+
+        Entry entry = entries[kind];
+        if (entry == null) {
+            entry = new Entry(item, kind);
+            entries[kind] = entry;
+        }
+        return entry;
+    }
+
+    private CompletableFuture<ByteBuffer> queue(Entry entry)
+    {
+        if (!entry.mQueued) {
+            entry.mQueued = true;
+            entry.mFuture = new CompletableFuture<ByteBuffer>();
+            mQueue.add(entry);
+            schedule();
+        }
+        return entry.mFuture;
+    }
+
+    /** Forget entry once it is on its way; the next value starts a new one. **/
+    private void remove(Entry entry)
+    {
+        Entry[] entries = mPending.get(entry.mItem);
+        entries[entry.mKind] = null;
+        for (Entry other : entries) {
+            if (other != null)
+                return;
+        }
+        mPending.remove(entry.mItem);
+    }
+
+    /** Send the oldest pending value, if any. **/
+    private boolean sendNext()
+    {
+        ByteBuffer data = mConn.framePool().acquire();
+        CompletableFuture<ByteBuffer> future;
+
+        try {
+            synchronized (this) {
+                Entry entry = mQueue.poll();
+                if (entry == null)
+                    return false;
+
+                Luminary item = entry.mItem;
+                switch (entry.mKind) {
+                case ONOFF:
+                    mConn.encodeOnOff(data, item, entry.mOn);
+                    break;
+                case LUMINANCE:
+                    mConn.encodeLuminance(data, item, entry.mLum, entry.mTime);
+                    break;
+                case TEMPERATURE:
+                    mConn.encodeTemp(data, item, entry.mTemp, entry.mTime);
+                    break;
+                default:
+                    mConn.encodeColor(data, item, entry.mR, entry.mG, entry.mB, entry.mTime);
+                    break;
+                }
+                future = entry.mFuture;
+                remove(entry);
+                mLastSent = System.nanoTime();
+            }
+
+            data.flip();
+            mConn.sendAsync(data).whenComplete((res, e) -> {
+                    if (e != null)
+                        future.completeExceptionally(e);
+                    else
+                        future.complete(res);
+                });
+            return true;
+        } finally {
+            mConn.framePool().release(data);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns per-light target states, each a list of setter commands, into a
+ * short list of frames. Lights are grouped on their full target state:
+ * a group frame carries each command of the most common state that
+ * every member of the group sets, and the members that want something
+ * else are patched with individual frames sent after it. A group is
+ * used only if that takes fewer frames than addressing each member,
+ * and never if it contains lights that were not targeted. Chosen
+ * groups do not overlap.
+ **/
+public class CommandPlanner
+{
+    private static final int KINDS = 4;
+
+    /** One frame of a plan. **/
+    public static final class Step
+    {
+        public final Luminary item;
+        public final LightCommand command;
+
+        Step(Luminary item, LightCommand command)
+        {
+            this.item = item;
+            this.command = command;
+        }
+
+        public String toString()
+        {
+            return item + " " + command;
+        }
+    }
+
+    /** Target state of a light: at most one command of each kind, the last one given. **/
+    private static final class State
+    {
+        final LightCommand[] mCommands;
+
+        State(List<LightCommand> commands)
+        {
+            mCommands = new LightCommand[KINDS];
+            for (LightCommand command : commands) {
+                mCommands[kind(command.command())] = command;
+            }
+        }
+
+        int size()
+        {
+            int res = 0;
+            for (LightCommand command : mCommands) {
+                if (command != null)
+                    res++;
+            }
+            return res;
+        }
+
+        public boolean equals(Object o)
+        {
+            return o instanceof State && Arrays.equals(mCommands, ((State)o).mCommands);
+        }
+
+        public int hashCode()
+        {
+            return Arrays.hashCode(mCommands);
+        }
+    }
+
+    private static int kind(byte command)
+    {
+        switch (command) {
+        case Connection.COMMAND_ONOFF:
+            return 0;
+        case Connection.COMMAND_LUMINANCE:
+            return 1;
+        case Connection.COMMAND_TEMP:
+            return 2;
+        default:
+            return 3;
+        }
+    }
+
+    /** Group frames first, then individual frames. **/
+    public static List<Step> plan(Connection conn, Map<Light,List<LightCommand>> targets)
+    {
+        ArrayList<Group> groups = new ArrayList<Group>(conn.groups().values());
+        Collections.sort(groups, (a, b) -> b.lights().length - a.lights().length);
+
+        LongMap<State> states = new LongMap<State>(targets.size());
+        for (Map.Entry<Light,List<LightCommand>> entry : targets.entrySet()) {
+            states.put(entry.getKey().addr().value(), new State(entry.getValue()));
+        }
+
+        ArrayList<Step> groupSteps = new ArrayList<Step>();
+        ArrayList<Step> lightSteps = new ArrayList<Step>();
+        LongMap<Light> covered = new LongMap<Light>();
+
+        for (Group group : groups) {
+            planGroup(conn, group, states, covered, groupSteps, lightSteps);
+        }
+
+        for (Light light : targets.keySet()) {
+            long addr = light.addr().value();
+            if (covered.containsKey(addr))
+                continue;
+            for (LightCommand command : states.get(addr).mCommands) {
+                if (command != null)
+                    lightSteps.add(new Step(light, command));
+            }
+        }
+
+        groupSteps.addAll(lightSteps);
+        return groupSteps;
+    }
+
+    private static void planGroup(Connection conn, Group group, LongMap<State> states,
+                                  LongMap<Light> covered, List<Step> groupSteps,
+                                  List<Step> lightSteps)
+    {
+        Light.Address[] members = group.lights();
+        HashMap<State,Integer> counts = new HashMap<State,Integer>();
+        State best = null;
+        int bestCount = 0;
+        int individual = 0;
+
+        for (Light.Address addr : members) {
+            State state = states.get(addr.value());
+            if (state == null || covered.containsKey(addr.value()) || conn.light(addr) == null)
+                return;
+
+            Integer count = counts.get(state);
+            count = count == null ? 1 : count + 1;
+            counts.put(state, count);
+            if (count > bestCount) {
+                best = state;
+                bestCount = count;
+            }
+            individual += state.size();
+        }
+        if (best == null)
+            return;
+
+        // A group frame may only carry a kind of command that every member sets
+        LightCommand[] shared = best.mCommands.clone();
+        for (Light.Address addr : members) {
+            State state = states.get(addr.value());
+            for (int kind = 0; kind < KINDS; kind++) {
+                if (state.mCommands[kind] == null)
+                    shared[kind] = null;
+            }
+        }
+
+        ArrayList<Step> patches = new ArrayList<Step>();
+        int frames = 0;
+        for (LightCommand command : shared) {
+            if (command != null)
+                frames++;
+        }
+        for (Light.Address addr : members) {
+            State state = states.get(addr.value());
+            for (int kind = 0; kind < KINDS; kind++) {
+                LightCommand command = state.mCommands[kind];
+                if (command != null && !command.equals(shared[kind]))
+                    patches.add(new Step(conn.light(addr), command));
+            }
+        }
+
+        // One group frame per shared command plus patches must beat one frame per command and member
+        if (frames == 0 || frames + patches.size() >= individual)
+            return;
+
+        for (LightCommand command : shared) {
+            if (command != null)
+                groupSteps.add(new Step(group, command));
+        }
+        for (Light.Address addr : members) {
+            covered.put(addr.value(), conn.light(addr));
+        }
+        lightSteps.addAll(patches);
+    }
+}
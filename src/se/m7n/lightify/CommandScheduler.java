@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Orders the requests of a connection by priority class. Interactive
+ * commands are always written at once. A lower class is held back while
+ * any higher class is in flight or queued, and each class has a window
+ * of requests in flight; bulk transfers get a window of two so a large
+ * status transfer or discovery sweep never builds up a backlog at the
+ * gateway ahead of a button press. Held frames are copied into pooled
+ * buffers, so callers may reuse theirs right away, and those buffers
+ * are handed to the write queue when they start. The request timeout
+ * counts from submission, so a held request fails once it passes even
+ * if it never got to start.
+ *
+ * Interactive requests only touch two atomic counters. The monitor
+ * guards the held frames and the windows of the lower classes. Frames
+ * released when a request completes are started by the thread that
+ * completed it; starting only queues them for the connection's writer,
+ * so the reader thread never blocks in a write.
+ **/
+final class CommandScheduler
+{
+    private static final int INTERACTIVE = Connection.PRIORITY_INTERACTIVE;
+
+    private static final class Queued
+    {
+        final ByteBuffer mFrame;
+        final FrameStream mStream;
+        final int mPriority;
+        final long mDeadline;
+        final CompletableFuture<ByteBuffer> mFuture;
+        ScheduledFuture<?> mExpiry;
+        volatile CompletableFuture<ByteBuffer> mStarted;
+
+        Queued(ByteBuffer frame, FrameStream stream, int priority, long deadline)
+        {
+            mFrame = frame;
+            mStream = stream;
+            mPriority = priority;
+            mDeadline = deadline;
+            mFuture = new CompletableFuture<ByteBuffer>();
+        }
+    }
+
+    private Connection mConn;
+    private AtomicInteger mInteractive;
+    private AtomicInteger mHeld;
+    private int[] mWindow;
+    private int[] mInFlight;
+    private ArrayList<ArrayDeque<Queued>> mQueues;
+
+    CommandScheduler(Connection conn)
+    {
+        mConn = conn;
+        mInteractive = new AtomicInteger();
+        mHeld = new AtomicInteger();
+        mWindow = new int[] { Integer.MAX_VALUE, 4, 2 };
+        mInFlight = new int[mWindow.length];
+        mQueues = new ArrayList<ArrayDeque<Queued>>();
+        for (int i = 0; i < mWindow.length; i++) {
+            mQueues.add(new ArrayDeque<Queued>());
+        }
+    }
+
+    /** Requests of a priority class allowed in flight at once. **/
+    synchronized void setWindow(int priority, int window)
+    {
+        if (priority == INTERACTIVE)
+            throw new IllegalArgumentException("Interactive requests are never held back");
+        mWindow[priority] = Math.max(window, 1);
+    }
+
+    /** Frames held back, over all classes. **/
+    int queued()
+    {
+        return mHeld.get();
+    }
+
+    CompletableFuture<ByteBuffer> submit(ByteBuffer data, FrameStream stream, int priority)
+    {
+        long deadline = mConn.deadline();
+
+        if (priority == INTERACTIVE) {
+            mInteractive.incrementAndGet();
+            return start(data, stream, false, priority, deadline);
+        }
+
+        Queued queued;
+
+        synchronized (this) {
+            if (mayStart(priority)) {
+                mInFlight[priority]++;
+                queued = null;
+            } else {
+                queued = new Queued(mConn.copy(data), stream, priority, deadline);
+                mQueues.get(priority).add(queued);
+                mHeld.incrementAndGet();
+                queued.mExpiry = Connection.timer().schedule(() -> expire(queued), deadline - System.nanoTime(),
+                                                             TimeUnit.NANOSECONDS);
+            }
+        }
+
+        if (queued == null)
+            return start(data, stream, false, priority, deadline);
+
+        queued.mFuture.whenComplete((res, e) -> {
+                if (queued.mFuture.isCancelled())
+                    cancel(queued);
+            });
+
+        // The last interactive request may have finished without seeing this one
+        if (mInteractive.get() == 0)
+            startAll(ready());
+        return queued.mFuture;
+    }
+
+    /**
+     * Write back to back frames with a single write as interactive
+     * requests. They are never held back but count as in flight, so
+     * lower classes wait for them.
+     **/
+    List<CompletableFuture<ByteBuffer>> submitFrames(ByteBuffer frames)
+    {
+        int count = 0;
+        for (int pos = frames.position(); pos < frames.limit(); pos += 2 + (frames.getShort(pos) & 0xffff)) {
+            count++;
+        }
+        mInteractive.addAndGet(count);
+
+        List<CompletableFuture<ByteBuffer>> futures = mConn.startFrames(frames);
+        for (CompletableFuture<ByteBuffer> future : futures) {
+            future.whenComplete((res, e) -> finished(INTERACTIVE));
+        }
+        return futures;
+    }
+
+    /** Fail every frame still held back. **/
+    void fail(IOException e)
+    {
+        ArrayList<Queued> failed = new ArrayList<Queued>();
+
+        synchronized (this) {
+            for (ArrayDeque<Queued> queue : mQueues) {
+                failed.addAll(queue);
+                queue.clear();
+            }
+            mHeld.addAndGet(-failed.size());
+        }
+
+        for (Queued queued : failed) {
+            queued.mExpiry.cancel(false);
+            mConn.release(queued.mFrame);
+            queued.mFuture.completeExceptionally(e);
+        }
+    }
+
+    /** A held frame reached its deadline before it could start. **/
+    private void expire(Queued queued)
+    {
+        if (!withdraw(queued))
+            return;
+        queued.mFuture.completeExceptionally(new GatewayTimeoutException("Request held back for "
+                                                                         + mConn.timeout() + " ms, never sent"));
+    }
+
+    /** The caller cancelled; drop the frame if held, or the request if started. **/
+    private void cancel(Queued queued)
+    {
+        if (withdraw(queued)) {
+            queued.mExpiry.cancel(false);
+            return;
+        }
+
+        CompletableFuture<ByteBuffer> started = queued.mStarted;
+        if (started != null)
+            started.cancel(false);
+    }
+
+    /** Take queued out of its queue unless it has started already. **/
+    private boolean withdraw(Queued queued)
+    {
+        synchronized (this) {
+            if (!mQueues.get(queued.mPriority).remove(queued))
+                return false;
+            mHeld.decrementAndGet();
+        }
+
+        mConn.release(queued.mFrame);
+        return true;
+    }
+
+    private boolean mayStart(int priority)
+    {
+        if (mInFlight[priority] >= mWindow[priority] || !mQueues.get(priority).isEmpty())
+            return false;
+        if (mInteractive.get() > 0)
+            return false;
+        for (int i = INTERACTIVE + 1; i < priority; i++) {
+            if (mInFlight[i] > 0 || !mQueues.get(i).isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    private CompletableFuture<ByteBuffer> start(ByteBuffer data, FrameStream stream, boolean owned,
+                                                int priority, long deadline)
+    {
+        CompletableFuture<ByteBuffer> future = mConn.start(data, stream, owned, deadline);
+        future.whenComplete((res, e) -> finished(priority));
+        return future;
+    }
+
+    private void finished(int priority)
+    {
+        if (priority == INTERACTIVE) {
+            // Seen by a submitter that queues meanwhile, see submit
+            if (mInteractive.decrementAndGet() > 0 || mHeld.get() == 0)
+                return;
+        } else {
+            synchronized (this) {
+                mInFlight[priority]--;
+            }
+        }
+
+        startAll(ready());
+    }
+
+    /** Take the held frames that may start now, counting them as in flight. **/
+    private ArrayList<Queued> ready()
+    {
+        ArrayList<Queued> ready = null;
+
+        if (mInteractive.get() > 0)
+            return null;
+
+        synchronized (this) {
+            for (int i = INTERACTIVE + 1; i < mQueues.size(); i++) {
+                ArrayDeque<Queued> queue = mQueues.get(i);
+
+                while (!queue.isEmpty() && mInFlight[i] < mWindow[i]) {
+                    if (ready == null)
+                        ready = new ArrayList<Queued>();
+                    Queued queued = queue.poll();
+                    queued.mExpiry.cancel(false);
+                    ready.add(queued);
+                    mHeld.decrementAndGet();
+                    mInFlight[i]++;
+                }
+                if (mInFlight[i] > 0 || !queue.isEmpty())
+                    break;
+            }
+        }
+        return ready;
+    }
+
+    private void startAll(ArrayList<Queued> ready)
+    {
+        if (ready == null)
+            return;
+
+        for (Queued queued : ready) {
+            CompletableFuture<ByteBuffer> started = start(queued.mFrame, queued.mStream, true,
+                                                          queued.mPriority, queued.mDeadline);
+            queued.mStarted = started;
+            started.whenComplete((res, e) -> {
+                    if (e != null)
+                        queued.mFuture.completeExceptionally(e);
+                    else
+                        queued.mFuture.complete(res);
+                });
+            // Cancelled between leaving the queue and starting
+            if (queued.mFuture.isCancelled())
+                started.cancel(false);
+        }
+    }
+}
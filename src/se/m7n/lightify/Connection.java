@@ -22,41 +22,96 @@
 
 package se.m7n.lightify;
 
-import java.io.InputStream;
+import java.io.Closeable;
+import java.io.InterruptedIOException;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.nio.CharBuffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class Connection
+public class Connection implements Closeable
 {
-    public final int PORT = 4000;
+    public static final int PORT = 4000;
 
-    public final byte COMMAND_ALL_LIGHT_STATUS = 0x13;
-    public final byte COMMAND_GROUP_LIST = 0x1e;
-    public final byte COMMAND_GROUP_INFO = 0x26;
-    public final byte COMMAND_LUMINANCE = 0x31;
-    public final byte COMMAND_ONOFF = 0x32;
-    public final byte COMMAND_TEMP = 0x33;
-    public final byte COMMAND_COLOUR = 0x36;
-    public final byte COMMAND_LIGHT_STATUS = 0x68;
+    public static final byte COMMAND_ALL_LIGHT_STATUS = 0x13;
+    public static final byte COMMAND_GROUP_LIST = 0x1e;
+    public static final byte COMMAND_GROUP_INFO = 0x26;
+    public static final byte COMMAND_LUMINANCE = 0x31;
+    public static final byte COMMAND_ONOFF = 0x32;
+    public static final byte COMMAND_TEMP = 0x33;
+    public static final byte COMMAND_COLOUR = 0x36;
+    public static final byte COMMAND_LIGHT_STATUS = 0x68;
+
+    // Milliseconds
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final long DEFAULT_TIMEOUT = 10000;
+    static final long RECONNECT_MIN = 100;
+    static final long RECONNECT_MAX = 30000;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static ScheduledThreadPoolExecutor sTimer;
+
+    // Priority classes, highest first
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_STATUS = 1;
+    public static final int PRIORITY_BULK = 2;
 
     private Logger mLogger;
     private Charset mCharset;
-    private Socket mSock;
-    private OutputStream mOs;
-    private InputStream mIs;
-    private int mSeq;
-    private HashMap<String,Group> mGroups;
-    private HashMap<Light.Address,Light> mLights;
+    private InetAddress mHost;
+    private int mPort;
+    private EventLoop mLoop;
+    // Null while reconnecting
+    private AtomicReference<Transport> mTransport;
+    private AtomicInteger mSeq;
+    // Registries are replaced, never changed, once published
+    private volatile HashMap<String,Group> mGroups;
+    private volatile LongMap<Light> mLights;
+    private NameIndex<Light> mLightNames;
+    private NameIndex<Group> mGroupNames;
+    private Object mRegistryLock;
+    private LightStateStore mStore;
+    private AtomicInteger mGeneration;
+    private StatusRecords mRecords;
+    private CopyOnWriteArrayList<LightListener> mListeners;
+    private ConcurrentHashMap<Integer,CompletableFuture<ByteBuffer>> mPending;
+    private ConcurrentHashMap<Integer,FrameStream> mStreams;
+    private FramePool mPool;
+    private CommandScheduler mScheduler;
+    private volatile WriteQueue mWriteQueue;
+    private volatile long mTimeout;
+    private volatile long mLastReceived;
+    private AtomicBoolean mProbing;
+    private long mReconnectDelay;
+    private volatile Coalescer mCoalescer;
+    private volatile Trace mTrace;
+    private GatewayStats mStats;
+    private volatile boolean mClosed;
 
     /*
      * Commands
@@ -71,17 +126,88 @@ public class Connection
      */
 
     public Connection(InetAddress host) throws IOException
+    {
+        this(host, null);
+    }
+
+    /**
+     * Connect through a shared EventLoop instead of a blocking socket
+     * with its own reader thread. A null loop selects the latter.
+     **/
+    public Connection(InetAddress host, EventLoop loop) throws IOException
+    {
+        this(host, PORT, loop);
+    }
+
+    /** Connect to a gateway, or a GatewaySimulator, on another port. **/
+    public Connection(InetAddress host, int port, EventLoop loop) throws IOException
     {
         mLogger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
         mLogger.info("Lightify connection");
         mCharset = Charset.forName("ASCII");
-        mSeq = 1;
+        mSeq = new AtomicInteger(1);
         mGroups = new HashMap<String,Group>();
-        mLights = new HashMap<Light.Address,Light>();
+        mLights = new LongMap<Light>();
+        mLightNames = new NameIndex<Light>();
+        mGroupNames = new NameIndex<Group>();
+        mRegistryLock = new Object();
+        mGeneration = new AtomicInteger();
+        mStore = new LightStateStore();
+        mRecords = new StatusRecords();
+        mListeners = new CopyOnWriteArrayList<LightListener>();
+        mPending = new ConcurrentHashMap<Integer,CompletableFuture<ByteBuffer>>();
+        mStreams = new ConcurrentHashMap<Integer,FrameStream>();
+        mProbing = new AtomicBoolean();
+
+        // Direct buffers only pay off when written by a channel. Frames
+        // queued for the writer hold their buffers until written.
+        mPool = new FramePool(64, loop != null);
+        mScheduler = new CommandScheduler(this);
+
+        mHost = host;
+        mPort = port;
+        mLoop = loop;
+        mTimeout = DEFAULT_TIMEOUT;
+        mReconnectDelay = RECONNECT_MIN;
+        mTransport = new AtomicReference<Transport>();
+        mStats = new GatewayStats(this, host.getHostAddress() + ":" + port);
+
+        Transport transport = openTransport();
+        mWriteQueue = new WriteQueue(this, transport, mPool, mHost.getHostAddress());
+        mTransport.set(transport);
+    }
+
+    private Transport openTransport() throws IOException
+    {
+        if (mLoop != null)
+            return new NioTransport(this, mLoop, mHost, mPort);
+        else
+            return new SocketTransport(this, mHost, mPort);
+    }
+
+    static synchronized ScheduledThreadPoolExecutor timer()
+    {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread thread = new Thread(r, "lightify-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            sTimer.setRemoveOnCancelPolicy(true);
+        }
+        return sTimer;
+    }
 
-        mSock = new Socket(host, PORT);
-        mIs = mSock.getInputStream();
-        mOs = mSock.getOutputStream();
+    /** Close the socket and fail all requests still waiting for a response. **/
+    public void close() throws IOException
+    {
+        mClosed = true;
+        Transport transport = mTransport.getAndSet(null);
+        if (transport != null)
+            transport.close();
+        mWriteQueue.close();
+        failPending(new IOException("Connection closed"));
+        mStats.unregister();
     }
 
     private ByteBuffer byteBufferAllocate(int size)
@@ -108,130 +234,273 @@ public class Connection
         return mCharset;
     }
 
-    /** Dict from group name to Group object. **/
+    /** Dict from group name to Group object. Replaced on refresh; do not modify. **/
     public HashMap<String,Group> groups()
     {
         return mGroups;
     }
 
-    /** Dict from light addr to Light object. **/
-    public HashMap<Light.Address,Light> lights()
+    /** Map from light address to Light object. Replaced on refresh; do not modify. **/
+    public LongMap<Light> lights()
     {
         return mLights;
     }
 
+    /** Column store holding the state of every light in lights(). **/
+    public LightStateStore store()
+    {
+        return mStore;
+    }
+
+    public Light light(long addr)
+    {
+        return mLights.get(addr);
+    }
+
+    public Light light(Light.Address addr)
+    {
+        return mLights.get(addr.value());
+    }
+
     public Light lightByName(String name)
     {
-        mLogger.info("" + lights().size());
+        return mLightNames.get(name);
+    }
 
-        Iterator<Light> iter = lights().values().iterator();
+    public Group groupByName(String name)
+    {
+        return mGroupNames.get(name);
+    }
 
-        while (iter.hasNext()) {
-            Light light = iter.next();
+    /** Index of light names, for case-insensitive and prefix lookup. **/
+    public NameIndex<Light> lightNames()
+    {
+        return mLightNames;
+    }
 
-            // try {
-            //     mLogger.info("Light '" + toHexString(light.name().getBytes("ASCII")) + "' '" + toHexString(name.getBytes("ASCII")) + "': " + light.name().equals(name));
-            // } catch (UnsupportedEncodingException e) {
-            // }
+    public NameIndex<Group> groupNames()
+    {
+        return mGroupNames;
+    }
 
-            if (light.name().equals(name)) {
-                return light;
-            }
+    /**
+     * Find the light or group a user means by name: the one named
+     * exactly name, lights before groups, else the only one named name
+     * ignoring case, else the only one whose name starts with it.
+     * Returns null if none or several match.
+     **/
+    public Luminary resolve(String name)
+    {
+        Luminary item = mLightNames.get(name);
+        if (item == null)
+            item = mGroupNames.get(name);
+        if (item != null)
+            return item;
+
+        List<Light> lights = mLightNames.getIgnoreCase(name);
+        List<Group> groups = mGroupNames.getIgnoreCase(name);
+        if (lights.isEmpty() && groups.isEmpty()) {
+            lights = mLightNames.startingWith(name);
+            groups = mGroupNames.startingWith(name);
         }
+        return unique(lights, groups);
+    }
 
-        return null;
+    private static Luminary unique(List<Light> lights, List<Group> groups)
+    {
+        if (lights.size() + groups.size() != 1)
+            return null;
+        return lights.isEmpty() ? groups.get(0) : lights.get(0);
     }
 
     public int nextSeq()
     {
-        mSeq = mSeq + 1;
-        return mSeq;
+        return mSeq.incrementAndGet();
+    }
+
+    /**
+     * Reusable buffers for encoding frames with the encode* methods.
+     * Buffers can be released as soon as send or sendAsync returns.
+     **/
+    public FramePool framePool()
+    {
+        return mPool;
+    }
+
+    /**
+     * Route the Luminary setters through coalescer, or send them
+     * directly again when null.
+     **/
+    public void setCoalescer(Coalescer coalescer)
+    {
+        mCoalescer = coalescer;
+    }
+
+    public Coalescer coalescer()
+    {
+        return mCoalescer;
+    }
+
+    /*
+     * The encode* methods append a frame at the position of dst, which
+     * is switched to little-endian, and allocate nothing. The build*
+     * methods return a freshly allocated frame, flipped for sending.
+     */
+
+    public void encodeGlobalCommand(ByteBuffer dst, byte command, int dataLength)
+    {
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putShort((short)(6 + dataLength));
+        dst.put((byte)0x02);
+        dst.put(command);
+        dst.putInt(nextSeq());
+    }
+
+    public void encodeBasicCommand(ByteBuffer dst, byte flag, byte command, long group_or_light, int dataLength)
+    {
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putShort((short)(14 + dataLength));
+        dst.put(flag);
+        dst.put(command);
+        dst.putInt(nextSeq());
+        // Format: <Q
+        dst.putLong(group_or_light);
+    }
+
+    public void encodeCommand(ByteBuffer dst, byte command, Group group, int dataLength)
+    {
+        encodeBasicCommand(dst, (byte)0x02, command, group.idx() & 0xff, dataLength);
+    }
+
+    public void encodeLightCommand(ByteBuffer dst, byte command, Light light, int dataLength)
+    {
+        encodeBasicCommand(dst, (byte)0x00, command, light.addr().value(), dataLength);
+    }
+
+    public void encodeOnOff(ByteBuffer dst, Luminary item, boolean on)
+    {
+        item.encodeCommand(dst, COMMAND_ONOFF, 1);
+        dst.put((byte)(on ? 1 : 0));
+    }
+
+    public void encodeTemp(ByteBuffer dst, Luminary item, short temp, short time)
+    {
+        item.encodeCommand(dst, COMMAND_TEMP, 4);
+        dst.putShort(temp);
+        dst.putShort(time);
+    }
+
+    public void encodeLuminance(ByteBuffer dst, Luminary item, byte luminance, short time)
+    {
+        item.encodeCommand(dst, COMMAND_LUMINANCE, 3);
+        dst.put(luminance);
+        dst.putShort(time);
+    }
+
+    public void encodeColor(ByteBuffer dst, Luminary item, byte red, byte green, byte blue, short time)
+    {
+        item.encodeCommand(dst, COMMAND_COLOUR, 6);
+        dst.put(red);
+        dst.put(green);
+        dst.put(blue);
+        dst.put((byte)0xff);
+        dst.putShort(time);
+    }
+
+    public void encodeGroupInfo(ByteBuffer dst, Group group)
+    {
+        encodeCommand(dst, COMMAND_GROUP_INFO, group, 0);
+    }
+
+    public void encodeAllLightStatus(ByteBuffer dst, byte flag)
+    {
+        encodeGlobalCommand(dst, COMMAND_ALL_LIGHT_STATUS, 1);
+        dst.put(flag);
+    }
+
+    public void encodeLightStatus(ByteBuffer dst, Light light)
+    {
+        encodeLightCommand(dst, COMMAND_LIGHT_STATUS, light, 0);
+    }
+
+    public void encodeGroupList(ByteBuffer dst)
+    {
+        encodeGlobalCommand(dst, COMMAND_GROUP_LIST, 0);
     }
 
     public ByteBuffer buildGlobalCommand(byte command, byte[] data)
     {
-        int length = 6 + (data != null ? data.length : 0);
-        ByteBuffer buf = byteBufferAllocate(length+2);
+        int length = data != null ? data.length : 0;
+        ByteBuffer buf = byteBufferAllocate(8 + length);
 
-        mLogger.info("buildGlobalCommand length:" + length);
-        buf.putShort((short)length);
-        buf.put((byte)0x02);
-        buf.put(command);
-        buf.putInt(nextSeq());
+        encodeGlobalCommand(buf, command, length);
         if (data != null) {
             buf.put(data);
         }
 
+        buf.flip();
         return buf;
     }
 
-    public ByteBuffer buildBasicCommand(byte flag, byte command, byte[] group_or_light, byte[] data)
+    public ByteBuffer buildBasicCommand(byte flag, byte command, long group_or_light, byte[] data)
     {
-        short length = (short)(14 + (data != null ? data.length : 0));
-        ByteBuffer buf = byteBufferAllocate(length + 2);
+        int length = data != null ? data.length : 0;
+        ByteBuffer buf = byteBufferAllocate(16 + length);
 
-        buf.putShort(length);
-        buf.put(flag);
-        buf.put(command);
-        buf.putInt(nextSeq());
-        buf.put(group_or_light);
+        encodeBasicCommand(buf, flag, command, group_or_light, length);
         if (data != null) {
             buf.put(data);
         }
 
+        buf.flip();
         return buf;
     }
 
-    public ByteBuffer buildCommand(byte command, Group group, byte[] data)
+    public ByteBuffer buildBasicCommand(byte flag, byte command, byte[] group_or_light, byte[] data)
     {
-        int length = 14 + (data != null ? data.length : 0);
-        byte[] groupIdx = new byte[8];
-        groupIdx[0] = group.idx();
+        return buildBasicCommand(flag, command, Light.Address.decode(group_or_light), data);
+    }
 
-        return buildBasicCommand((byte)0x02, command, groupIdx, data);
+    public ByteBuffer buildCommand(byte command, Group group, byte[] data)
+    {
+        return buildBasicCommand((byte)0x02, command, group.idx() & 0xff, data);
     }
 
     public ByteBuffer buildLightCommand(byte command, Light light, byte[] data)
     {
-        int length = 6 + 8 + data.length;
-
-        return buildBasicCommand((byte)0x00, command, light.addr().data(), data);
+        return buildBasicCommand((byte)0x00, command, light.addr().value(), data);
     }
 
     public ByteBuffer buildOnOff(Luminary item, boolean on)
     {
-        byte[] data = new byte[1];
-        data[0] = (byte)(on ? 1 : 0);
-        return item.buildCommand(COMMAND_ONOFF, data);
+        ByteBuffer buf = byteBufferAllocate(17);
+        encodeOnOff(buf, item, on);
+        buf.flip();
+        return buf;
     }
 
     public ByteBuffer buildTemp(Luminary item, short temp, short time)
     {
-        ByteBuffer buf = byteBufferAllocate(4);
-        buf.putShort(temp);
-        buf.putShort(time);
-
-        return item.buildCommand(COMMAND_TEMP, buf.array());
+        ByteBuffer buf = byteBufferAllocate(20);
+        encodeTemp(buf, item, temp, time);
+        buf.flip();
+        return buf;
     }
 
     public ByteBuffer buildLuminance(Luminary item, byte luminance, short time)
     {
-        ByteBuffer buf = byteBufferAllocate(3);
-        buf.put(luminance);
-        buf.putShort(time);
-        return item.buildCommand(COMMAND_LUMINANCE, buf.array());
+        ByteBuffer buf = byteBufferAllocate(19);
+        encodeLuminance(buf, item, luminance, time);
+        buf.flip();
+        return buf;
     }
 
     public ByteBuffer buildColor(Luminary item, byte red, byte green, byte blue, short time)
     {
-        ByteBuffer buf = byteBufferAllocate(6);
-        buf.put(red);
-        buf.put(green);
-        buf.put(blue);
-        buf.put((byte)0xff);
-        buf.putShort(time);
-
-        return item.buildCommand(COMMAND_COLOUR, buf.array());
+        ByteBuffer buf = byteBufferAllocate(22);
+        encodeColor(buf, item, red, green, blue, time);
+        buf.flip();
+        return buf;
     }
 
     public ByteBuffer buildGroupInfo(Group group)
@@ -241,9 +510,10 @@ public class Connection
 
     public ByteBuffer buildAllLightStatus(byte flag)
     {
-        byte[] data = new byte[1];
-        data[0] = flag;
-        return buildGlobalCommand(COMMAND_ALL_LIGHT_STATUS, data);
+        ByteBuffer buf = byteBufferAllocate(9);
+        encodeAllLightStatus(buf, flag);
+        buf.flip();
+        return buf;
     }
 
     public ByteBuffer buildLightStatus(Light light)
@@ -258,13 +528,21 @@ public class Connection
 
     public HashMap<Integer,String> groupList() throws IOException
     {
-        ByteBuffer data = buildGroupList();
-        send(data);
-        data = recv();
+        return await(groupListAsync());
+    }
+
+    public CompletableFuture<HashMap<Integer,String>> groupListAsync()
+    {
+        return sendAsync(buildGroupList(), PRIORITY_BULK).thenApply(data -> parseGroupList(data));
+    }
+
+    private HashMap<Integer,String> parseGroupList(ByteBuffer data)
+    {
         data.order(ByteOrder.LITTLE_ENDIAN);
-        int num = data.getShort(7);
+        int num = data.getShort(9);
         HashMap<Integer,String> groups = new HashMap<Integer,String>(num);
-        mLogger.info("Num " + num);
+        if (mLogger.isLoggable(Level.FINE))
+            mLogger.fine("Num " + num);
 
         for(int i=0; i<num; i++) {
             int pos = 11+i*18;
@@ -276,7 +554,8 @@ public class Connection
             String name = nameBuf.toString().trim();
 
             groups.put(idx, name);
-            mLogger.info("Idx " + idx + ": '" + name + "'");
+            if (mLogger.isLoggable(Level.FINE))
+                mLogger.fine("Idx " + idx + ": '" + name + "'");
         }
 
         return groups;
@@ -284,51 +563,256 @@ public class Connection
 
     public void updateGroupList() throws IOException
     {
-        HashMap<Integer,String> lst = groupList();
-        HashMap<String,Group> groups = new HashMap<String,Group>(lst.size());
+        await(updateGroupListAsync());
+    }
 
-        Iterator<Integer> iter = lst.keySet().iterator();
-        while(iter.hasNext()) {
-            Integer idx = iter.next();
-            String name = lst.get(idx);
+    /**
+     * Discover the groups and their members. All COMMAND_GROUP_INFO
+     * requests are sent back to back once the group list is known, and
+     * groups() is replaced when the last response has arrived.
+     **/
+    public CompletableFuture<Void> updateGroupListAsync()
+    {
+        return groupListAsync().thenCompose(lst -> {
+                HashMap<Byte,Group> old_groups = new HashMap<Byte,Group>();
+                for (Group group : groups().values()) {
+                    old_groups.put(group.idx(), group);
+                }
+
+                HashMap<String,Group> groups = new HashMap<String,Group>(lst.size());
+                CompletableFuture<?>[] infos = new CompletableFuture<?>[lst.size()];
+                int i = 0;
+
+                for (Map.Entry<Integer,String> entry : lst.entrySet()) {
+                    byte idx = entry.getKey().byteValue();
+                    String name = entry.getValue();
+
+                    Group group = old_groups.get(idx);
+                    if (group == null)
+                        group = new Group(this, idx, name);
+                    else
+                        group.setName(name);
+
+                    final Group g = group;
+                    infos[i++] = groupInfoAsync(g).thenAccept(lights -> g.setLights(lights));
+                    groups.put(name, group);
+                }
+
+                return CompletableFuture.allOf(infos).thenRun(() -> publishGroups(groups));
+            });
+    }
 
-            Group group = new Group(this, idx.byteValue(), name);
-            group.setLights(groupInfo(group));
-            groups.put(name, group);
-        }
+    public Light.Address[] groupInfo(Group group) throws IOException
+    {
+        return await(groupInfoAsync(group));
+    }
 
-        mGroups = groups;
+    public CompletableFuture<Light.Address[]> groupInfoAsync(Group group)
+    {
+        return sendAsync(buildGroupInfo(group), PRIORITY_BULK).thenApply(data -> parseGroupInfo(data));
     }
 
-    public Light.Address[] groupInfo(Group group) throws IOException
+    private Light.Address[] parseGroupInfo(ByteBuffer data)
     {
-        ByteBuffer data = buildGroupInfo(group);
-        send(data);
-        data = recv();
-        ByteBuffer payload = byteBufferWrap(data.array(), 7, data.limit()-7);
+        ByteBuffer payload = byteBufferWrap(data.array(), 9, data.limit()-9);
 
-        // Format: <H16s
+        // Format: <H16sB
         int idx = payload.getShort();
-        CharBuffer nameBuf = getCharset().decode(byteBufferWrap(payload.array(), 2, 16));
         payload.position(payload.position() + 16);
-        int num = payload.get();
+        int num = payload.get() & 0xff;
         Light.Address[] lights = new Light.Address[num];
-        //name = name.replace('\0', "");
         //self.__logger.debug("Idx %d: '%s' %d", idx, name, num);
         for(int i=0; i<num; i++) {
-            int pos = 7 + 19 + i * 8;
-            ByteBuffer lightPayload = byteBufferWrap(data.array(), pos, 8);
+            int pos = 9 + 19 + i * 8;
             // Format <Q
-            byte[] addr = lightPayload.array();
+            long addr = data.getLong(pos);
             //self.__logger.debug("%d: %x", i, addr);
 
             lights[i] = new Light.Address(addr);
-
-            //self.read_light_status(addr);
         }
         return lights;
     }
 
+    /**
+     * Refresh light status and rediscover groups at the same time, both
+     * pipelined on this connection.
+     **/
+    public CompletableFuture<Void> refreshAsync()
+    {
+        return CompletableFuture.allOf(updateAllLightStatusAsync(), updateGroupListAsync());
+    }
+
+    public void refresh() throws IOException
+    {
+        await(refreshAsync());
+    }
+
+    /**
+     * Bring each light to its target state, a list of setter commands,
+     * with as few frames as the groups allow, see CommandPlanner. All
+     * frames are pipelined.
+     **/
+    public CompletableFuture<Void> applyAsync(Map<Light,List<LightCommand>> targets)
+    {
+        List<CommandPlanner.Step> plan = CommandPlanner.plan(this, targets);
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[plan.size()];
+        ByteBuffer data = mPool.acquire();
+
+        try {
+            for (int i = 0; i < sent.length; i++) {
+                CommandPlanner.Step step = plan.get(i);
+                data.clear();
+                step.command.encode(this, data, step.item);
+                data.flip();
+                sent[i] = sendAsync(data, PRIORITY_INTERACTIVE);
+            }
+        } finally {
+            mPool.release(data);
+        }
+
+        for (Map.Entry<Light,List<LightCommand>> entry : targets.entrySet()) {
+            for (LightCommand command : entry.getValue()) {
+                command.applyLocally(entry.getKey());
+            }
+        }
+        return CompletableFuture.allOf(sent);
+    }
+
+    public void apply(Map<Light,List<LightCommand>> targets) throws IOException
+    {
+        await(applyAsync(targets));
+    }
+
+    /**
+     * Send every command of the scene with a single write, then collect
+     * the responses. The result reports each item separately, so it
+     * completes normally even when some items failed.
+     **/
+    public CompletableFuture<Scene.Result> applyAsync(Scene scene)
+    {
+        List<CompletableFuture<ByteBuffer>> sent = sendFramesAsync(scene.encode(this));
+
+        scene.applyLocally();
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[sent.size()]))
+            .handle((v, e) -> new Scene.Result(scene, sent));
+    }
+
+    public Scene.Result apply(Scene scene) throws IOException
+    {
+        return await(applyAsync(scene));
+    }
+
+    /**
+     * Add the lights and groups saved by saveTopology, without touching
+     * the gateway. Light state stays unknown until the next refresh.
+     **/
+    public void loadTopology(Path file) throws IOException
+    {
+        Topology.load(this, file);
+    }
+
+    public void saveTopology(Path file) throws IOException
+    {
+        Topology.save(this, file);
+    }
+
+    /** Refresh lights and groups, then save them to file. **/
+    public CompletableFuture<Void> refreshTopologyAsync(Path file)
+    {
+        return refreshAsync().thenRun(() -> {
+                try {
+                    saveTopology(file);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /** Add a saved light to batch unless it is known already. **/
+    void restoreLight(LongMap<Light> batch, long addr, String name, byte type)
+    {
+        if (mLights.containsKey(addr) || batch.containsKey(addr))
+            return;
+
+        Light light = new Light(this, addr, name);
+        mStore.setType(light.slot(), type);
+        batch.put(addr, light);
+    }
+
+    /**
+     * Publish a copy of the light registry with added put in and removed
+     * taken out, updating the name index to match. Returns the lights
+     * actually added; one that another thread added first is detached
+     * again.
+     **/
+    List<Light> publishLights(LongMap<Light> added, List<Light> removed)
+    {
+        ArrayList<Light> res = new ArrayList<Light>();
+
+        synchronized (mRegistryLock) {
+            LongMap<Light> lights = new LongMap<Light>(mLights);
+            NameIndex.Batch<Light> names = new NameIndex.Batch<Light>();
+
+            if (removed != null) {
+                for (Light light : removed) {
+                    if (lights.remove(light.addr().value()) != null)
+                        names.remove(light.name(), light);
+                }
+            }
+            if (added != null) {
+                for (Light light : added.values()) {
+                    if (lights.containsKey(light.addr().value())) {
+                        mRecords.invalidate(light.slot());
+                        light.detach();
+                    } else {
+                        lights.put(light.addr().value(), light);
+                        names.add(light.name(), light);
+                        res.add(light);
+                    }
+                }
+            }
+            mLights = lights;
+            mLightNames.apply(names);
+        }
+        return res;
+    }
+
+    /** Add saved groups unless a group with the same name or index is known already. **/
+    void restoreGroups(HashMap<String,Group> saved)
+    {
+        synchronized (mRegistryLock) {
+            HashMap<String,Group> groups = new HashMap<String,Group>(mGroups);
+            HashSet<Byte> known = new HashSet<Byte>();
+            for (Group group : groups.values()) {
+                known.add(group.idx());
+            }
+
+            for (Map.Entry<String,Group> entry : saved.entrySet()) {
+                if (!groups.containsKey(entry.getKey()) && known.add(entry.getValue().idx()))
+                    groups.put(entry.getKey(), entry.getValue());
+            }
+            publishGroups(groups);
+        }
+    }
+
+    /** Replace the group registry, moving only the groups that changed in the name index. **/
+    private void publishGroups(HashMap<String,Group> groups)
+    {
+        synchronized (mRegistryLock) {
+            NameIndex.Batch<Group> names = new NameIndex.Batch<Group>();
+            for (Map.Entry<String,Group> entry : mGroups.entrySet()) {
+                if (groups.get(entry.getKey()) != entry.getValue())
+                    names.remove(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String,Group> entry : groups.entrySet()) {
+                if (mGroups.get(entry.getKey()) != entry.getValue())
+                    names.add(entry.getKey(), entry.getValue());
+            }
+            mGroups = groups;
+            mGroupNames.apply(names);
+        }
+    }
+
     static public String toHexString(byte[] bytes)
     {
         return toHexString(ByteBuffer.wrap(bytes));
@@ -336,171 +820,828 @@ public class Connection
 
     static public String toHexString(ByteBuffer bytes)
     {
-        ByteBuffer data = bytes.duplicate();
-        data.rewind();
-        StringBuffer buf = new StringBuffer();
-        for(int i=0;i<data.limit();i++) {
-            int value = data.get();
-            String hex = Integer.toHexString(value);
-            if (hex.length() <= 2) {
-                if (hex.length() == 1)
-                    buf.append("0");
-                buf.append(hex);
-            } else {
-                buf.append(hex.substring(hex.length() - 2));
-            }
-
-            buf.append(" ");
+        int len = bytes.limit();
+        StringBuilder buf = new StringBuilder(len * 3);
+
+        for (int i = 0; i < len; i++) {
+            int value = bytes.get(i);
+            buf.append(HEX_DIGITS[(value >> 4) & 0xf]);
+            buf.append(HEX_DIGITS[value & 0xf]);
+            buf.append(' ');
         }
 
         return buf.toString();
     }
 
+    /** Sequence number of the frame at the position of a buffer. **/
+    static public int frameSeq(ByteBuffer frame)
+    {
+        return frameSeq(frame, frame.position());
+    }
+
+    static int frameSeq(ByteBuffer frame, int pos)
+    {
+        // Format: <H2BI
+        return (frame.get(pos + 4) & 0xff)
+            | (frame.get(pos + 5) & 0xff) << 8
+            | (frame.get(pos + 6) & 0xff) << 16
+            | (frame.get(pos + 7) & 0xff) << 24;
+    }
+
+    /**
+     * Write the frame between position and limit. The buffer is left
+     * unchanged and may be reused once send returns.
+     **/
     public void send(ByteBuffer data) throws IOException
     {
-        mLogger.info("sending " + toHexString(data));
+        write(copy(data));
+    }
 
-        mOs.write(data.array());
+    /**
+     * Queue frame for the writer, handing it over: it goes back to the
+     * frame pool once written, or at once if it cannot be queued.
+     **/
+    void write(ByteBuffer frame) throws IOException
+    {
+        try {
+            if (mClosed)
+                throw new IOException("Connection closed");
+            if (mTransport.get() == null)
+                throw new IOException("Not connected to gateway, reconnecting");
+
+            Trace trace = mTrace;
+            if (trace != null)
+                trace.record(Trace.SENT, frame);
+            if (mLogger.isLoggable(Level.FINEST))
+                mLogger.finest("sending " + toHexString(frame));
+
+            int length = frame.remaining();
+            mWriteQueue.submit(frame);
+            mStats.sent(length);
+        } catch (IOException e) {
+            release(frame);
+            throw e;
+        }
+    }
+
+    /** Copy of data in a pooled buffer, or in one of its own if it is too large for the pool. **/
+    ByteBuffer copy(ByteBuffer data)
+    {
+        ByteBuffer frame;
+
+        if (data.remaining() <= FramePool.FRAME_SIZE)
+            frame = mPool.acquire();
+        else
+            frame = byteBufferAllocate(data.remaining());
+        frame.put(data.duplicate());
+        frame.flip();
+        return frame;
+    }
+
+    /** Return a buffer made by copy to the pool. **/
+    void release(ByteBuffer frame)
+    {
+        if (frame.capacity() == FramePool.FRAME_SIZE)
+            mPool.release(frame);
     }
 
-    public ByteBuffer recv() throws IOException
+    /** Fail the requests of frames that could not be written. **/
+    void writeFailed(ByteBuffer frames, IOException e)
     {
-        mLogger.info("receiving");
+        for (int pos = frames.position(); pos < frames.limit(); pos += 2 + (frames.getShort(pos) & 0xffff)) {
+            int seq = frameSeq(frames, pos);
+            CompletableFuture<ByteBuffer> future = mPending.remove(seq);
+            mStreams.remove(seq);
+            if (future != null)
+                future.completeExceptionally(e);
+        }
+    }
 
-        int lengthsize = 2;
-        byte[] data = new byte[lengthsize];
-        mIs.read(data);
+    /**
+     * Send a frame without waiting for the reply. The returned future
+     * is completed by the reader thread with the response carrying the
+     * same sequence number, so any number of requests may be in flight.
+     * Dependent actions run on the reader thread unless an *Async
+     * variant is used.
+     **/
+    public CompletableFuture<ByteBuffer> sendAsync(ByteBuffer data)
+    {
+        return sendAsync(data, null, PRIORITY_INTERACTIVE);
+    }
 
-        ByteBuffer lenBuf = byteBufferWrap(data);
+    /**
+     * Send a frame in a priority class, PRIORITY_INTERACTIVE,
+     * PRIORITY_STATUS or PRIORITY_BULK. Lower classes wait while higher
+     * ones are in flight, see CommandScheduler.
+     **/
+    public CompletableFuture<ByteBuffer> sendAsync(ByteBuffer data, int priority)
+    {
+        return sendAsync(data, null, priority);
+    }
 
-        // Format: <H
-        int length = lenBuf.getShort();
+    /**
+     * Send a frame whose response is fed to stream as it arrives. The
+     * future completes with null once the stream has seen all of it.
+     **/
+    CompletableFuture<ByteBuffer> sendAsync(ByteBuffer data, FrameStream stream, int priority)
+    {
+        if (mClosed || mTransport.get() == null) {
+            CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+            future.completeExceptionally(new IOException(mClosed ? "Connection closed"
+                                                         : "Not connected to gateway, reconnecting"));
+            return future;
+        }
 
-        mLogger.info("len: " + length);
+        return mScheduler.submit(data, stream, priority);
+    }
 
-        ByteBuffer buf = byteBufferAllocate(lengthsize + length);
-        buf.put(data);
+    /**
+     * Write a frame now, bypassing the scheduler. The request fails
+     * unless answered by deadline, a System.nanoTime() value. An owned
+     * frame, one made by copy, is handed over instead of copied again.
+     **/
+    CompletableFuture<ByteBuffer> start(ByteBuffer data, FrameStream stream, boolean owned, long deadline)
+    {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        int seq = frameSeq(data);
+        byte command = data.get(data.position() + 3);
+
+        if (mClosed) {
+            if (owned)
+                release(data);
+            future.completeExceptionally(new IOException("Connection closed"));
+            return future;
+        }
 
-        //self.__logger.debug(len(data))
-        //string = ""
-        int expected = length;
-        data = new byte[1024];
-        //self.__logger.debug("Length %d", length)
-        //self.__logger.debug("Expected %d", expected)
+        if (stream != null)
+            mStreams.put(seq, stream);
+        mPending.put(seq, future);
+        try {
+            // Owned frames may be reused as soon as they are written
+            write(owned ? data : copy(data));
+            expireAfter(seq, command, future, deadline);
+        } catch (IOException e) {
+            mPending.remove(seq);
+            mStreams.remove(seq);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-        while(expected > 0) {
-            //self.__logger.debug('received "%d %s"', length, binascii.hexlify(data));
+    /** A deadline the request timeout from now, for start. **/
+    long deadline()
+    {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeout);
+    }
 
-            int len = expected > 1024 ? 1024 : expected;
-            int res = mIs.read(data, 0, expected);
+    /**
+     * Fail the request seq with GatewayTimeoutException unless it is
+     * answered by deadline, and count it in the stats of command.
+     **/
+    private void expireAfter(int seq, byte command, CompletableFuture<ByteBuffer> future, long deadline)
+    {
+        long sent = System.nanoTime();
+        long timeout = mTimeout;
+        ScheduledFuture<?> timer = timer().schedule(() -> expire(seq, future, sent, timeout),
+                                                    Math.max(deadline - sent, 0), TimeUnit.NANOSECONDS);
+        mStats.started(command);
+        future.whenComplete((res, e) -> {
+                timer.cancel(false);
+                mStats.completed(command, sent, e);
+                // A cancelled request no longer wants its response
+                if (future.isCancelled()) {
+                    mPending.remove(seq, future);
+                    mStreams.remove(seq);
+                }
+            });
+    }
 
-            if (res == -1) {
-                // FIXME
-            } else {
-                expected = expected - res;
-                buf.put(data, 0, res);
+    /**
+     * Pass cancellation of derived on to source, the request it was
+     * made from, so cancelling a result also withdraws the request.
+     **/
+    static <T> CompletableFuture<T> cancelling(CompletableFuture<T> derived, CompletableFuture<?> source)
+    {
+        derived.whenComplete((res, e) -> {
+                if (derived.isCancelled())
+                    source.cancel(false);
+            });
+        return derived;
+    }
+
+    private void expire(int seq, CompletableFuture<ByteBuffer> future, long sent, long timeout)
+    {
+        if (!mPending.remove(seq, future))
+            return;
+        mStreams.remove(seq);
+
+        GatewayTimeoutException e = new GatewayTimeoutException("No response to request " + seq
+                                                                + " in " + timeout + " ms");
+        future.completeExceptionally(e);
+
+        // Nothing at all received since the request went out; the link may be dead
+        Transport transport = mTransport.get();
+        if (transport != null && mLastReceived - sent < 0)
+            probe(transport);
+    }
+
+    /**
+     * Ask the gateway for its group list to learn whether the link is
+     * still alive. Only when the probe gets no answer either is the
+     * transport failed, taking the pending requests with it. One probe
+     * runs at a time; its own expiry does not start another.
+     **/
+    private void probe(Transport transport)
+    {
+        if (!mProbing.compareAndSet(false, true))
+            return;
+
+        long sent = System.nanoTime();
+        sendAsync(buildGroupList(), PRIORITY_INTERACTIVE).whenComplete((res, e) -> {
+                mProbing.set(false);
+                if (e instanceof CompletionException && e.getCause() != null)
+                    e = e.getCause();
+                if (e instanceof GatewayTimeoutException && mLastReceived - sent < 0)
+                    transportFailed(transport, (IOException)e);
+            });
+    }
+
+    /**
+     * Send a buffer of back to back frames with a single write, in
+     * PRIORITY_INTERACTIVE. The returned futures complete with the
+     * responses, in frame order.
+     **/
+    public List<CompletableFuture<ByteBuffer>> sendFramesAsync(ByteBuffer frames)
+    {
+        if (mClosed || mTransport.get() == null) {
+            ArrayList<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+            fail(futures, frames, new IOException(mClosed ? "Connection closed"
+                                                  : "Not connected to gateway, reconnecting"));
+            return futures;
+        }
+
+        return mScheduler.submitFrames(frames);
+    }
+
+    /** Write back to back frames now, bypassing the scheduler. **/
+    List<CompletableFuture<ByteBuffer>> startFrames(ByteBuffer frames)
+    {
+        ArrayList<CompletableFuture<ByteBuffer>> futures = new ArrayList<CompletableFuture<ByteBuffer>>();
+        int start = frames.position();
+
+        if (mClosed) {
+            fail(futures, frames, new IOException("Connection closed"));
+            return futures;
+        }
+
+        while (frames.hasRemaining()) {
+            CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+            futures.add(future);
+            mPending.put(frameSeq(frames), future);
+            // Format: <H
+            frames.position(frames.position() + 2 + (frames.getShort(frames.position()) & 0xffff));
+        }
+        frames.position(start);
+
+        try {
+            send(frames);
+        } catch (IOException e) {
+            while (frames.hasRemaining()) {
+                mPending.remove(frameSeq(frames));
+                frames.position(frames.position() + 2 + (frames.getShort(frames.position()) & 0xffff));
+            }
+            frames.position(start);
+            for (CompletableFuture<ByteBuffer> future : futures) {
+                future.completeExceptionally(e);
             }
+            return futures;
         }
-        mLogger.info("received '" + toHexString(buf) + "'");
-        return buf;
+
+        long deadline = deadline();
+        for (int i = 0, pos = start; i < futures.size(); i++, pos += 2 + (frames.getShort(pos) & 0xffff)) {
+            expireAfter(frameSeq(frames, pos), frames.get(pos + 3), futures.get(i), deadline);
+        }
+        return futures;
     }
 
-    public void updateLightStatus(Light light) throws IOException
+    private static void fail(List<CompletableFuture<ByteBuffer>> futures, ByteBuffer frames, IOException e)
     {
-        ByteBuffer data = buildLightStatus(light);
-        send(data);
-        data = recv();
-        return;
+        for (int pos = frames.position(); pos < frames.limit(); pos += 2 + (frames.getShort(pos) & 0xffff)) {
+            CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+            future.completeExceptionally(e);
+            futures.add(future);
+        }
+    }
 
+    /** Send a frame and block until its response arrives. **/
+    public ByteBuffer request(ByteBuffer data) throws IOException
+    {
+        return await(sendAsync(data));
+    }
 
-        // (on,lum,temp,red,green,blue,h) = struct.unpack("<27x2BH4B16x", data)
-        // self.__logger.debug('status: %0x %0x %d %0x %0x %0x %0x', on,lum,temp,red,green,blue,h)
+    static public <T> T await(CompletableFuture<T> future) throws IOException
+    {
+        return await(future, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
 
-        // self.__logger.debug('onoff: %d', on)
-        // self.__logger.debug('temp:  %d', temp)
-        // self.__logger.debug('lum:   %d', lum)
-        // self.__logger.debug('red:   %d', red)
-        // self.__logger.debug('green: %d', green)
-        // self.__logger.debug('blue:  %d', blue)
-        // return (on, lum, temp, red, green, blue)
+    /** Wait at most timeout for future; GatewayTimeoutException once it passes. **/
+    static public <T> T await(CompletableFuture<T> future, long timeout, TimeUnit unit) throws IOException
+    {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            throw new GatewayTimeoutException("No result in " + unit.toMillis(timeout) + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException();
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new IOException(cause);
+        }
     }
 
-    public void updateAllLightStatus() throws IOException
+    /**
+     * Number of requests of a priority class allowed in flight at once;
+     * 4 for PRIORITY_STATUS and 2 for PRIORITY_BULK unless changed.
+     * PRIORITY_INTERACTIVE has no window.
+     **/
+    public void setWindow(int priority, int window)
     {
-        ByteBuffer data = buildAllLightStatus((byte)1);
-        send(data);
-        data = recv();
-        // Format: <H
-        int num = data.getShort(9);
+        mScheduler.setWindow(priority, window);
+    }
 
-        mLogger.info("light status num: " + num);
+    /** Requests held back by priority, not yet sent. **/
+    public int queued()
+    {
+        return mScheduler.queued();
+    }
 
-        HashMap<Light.Address,Light> old_lights = lights();
-        HashMap<Light.Address,Light> new_lights = new HashMap<Light.Address,Light>(num);
+    /**
+     * Milliseconds a request may wait for its response before it fails
+     * with GatewayTimeoutException.
+     **/
+    public void setTimeout(long millis)
+    {
+        mTimeout = millis;
+    }
 
-        for(int i=0; i<num; i++) {
-            int pos = 11 + i * 42;
-            ByteBuffer payload = byteBufferWrap(data.array(), pos, 42);
-
-            mLogger.info(i + " " + pos + " " + payload.limit());
-            // Format: <HQ16s16s
-            int a = payload.getShort();
-            byte[] rawAddr = new byte[8];
-            payload.get(rawAddr);
-            Light.Address addr = new Light.Address(rawAddr);
-
-            ByteBuffer tmpBuf = payload.duplicate();
-            tmpBuf.position(pos + 26);
-            tmpBuf.limit(pos + 26 + 16);
-            CharBuffer nameBuf = getCharset().decode(tmpBuf);
-            mLogger.info("tmpBuf " + toHexString(tmpBuf));
+    public long timeout()
+    {
+        return mTimeout;
+    }
 
-            String name = nameBuf.toString().trim();
+    /** True once close() has been called. **/
+    public boolean isClosed()
+    {
+        return mClosed;
+    }
+
+    /** False while the link is down and being reestablished. **/
+    public boolean isConnected()
+    {
+        return mTransport.get() != null;
+    }
+
+    /** Record every frame sent and received in trace, or stop tracing with null. **/
+    public void setTrace(Trace trace)
+    {
+        mTrace = trace;
+    }
+
+    public Trace trace()
+    {
+        return mTrace;
+    }
+
+    /** Counters and latencies of this connection, see GatewayStats.register(). **/
+    public GatewayStats stats()
+    {
+        return mStats;
+    }
+
+    /** Pending requests waiting for a response. **/
+    public int inFlight()
+    {
+        return mPending.size();
+    }
+
+    /** Complete the request a received frame answers. **/
+    void dispatch(ByteBuffer frame)
+    {
+        int seq = frameSeq(frame);
+        CompletableFuture<ByteBuffer> future = mPending.remove(seq);
+
+        if (future != null)
+            future.complete(frame);
+        else
+            mLogger.warning("unexpected response seq " + seq);
+    }
+
+    /** Stream registered for the response with sequence number seq, or null. **/
+    FrameStream stream(int seq)
+    {
+        return mStreams.get(seq);
+    }
+
+    /** A streamed response has been fed completely, or failed with error. **/
+    void streamDone(int seq, Throwable error)
+    {
+        mStreams.remove(seq);
+        CompletableFuture<ByteBuffer> future = mPending.remove(seq);
+
+        if (future == null)
+            return;
+        if (error != null)
+            future.completeExceptionally(error);
+        else
+            future.complete(null);
+    }
+
+    /** Bytes arrived from the gateway. **/
+    void received(int bytes)
+    {
+        mLastReceived = System.nanoTime();
+        mStats.received(bytes);
+    }
+
+    /**
+     * The link broke. Fail everything waiting on it at once and try to
+     * reconnect in the background, backing off exponentially; requests
+     * made meanwhile fail right away. Reports about a link already
+     * replaced are ignored.
+     **/
+    void transportFailed(Transport transport, IOException e)
+    {
+        if (!mTransport.compareAndSet(transport, null))
+            return;
+
+        mLogger.warning("gateway link lost: " + e);
+        try {
+            transport.close();
+        } catch (IOException ignore) {
+        }
+        mWriteQueue.close();
+        failPending(e);
+
+        mReconnectDelay = RECONNECT_MIN;
+        scheduleReconnect();
+    }
+
+    // Only one thread at a time gets here: the one that took the link down, then the timer
+    private void scheduleReconnect()
+    {
+        long delay = mReconnectDelay;
+        mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_MAX);
+        timer().schedule(() -> reconnect(), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect()
+    {
+        if (mClosed)
+            return;
+
+        Transport transport;
+        try {
+            transport = openTransport();
+        } catch (IOException e) {
+            mLogger.info("reconnect failed: " + e);
+            scheduleReconnect();
+            return;
+        }
+
+        mWriteQueue = new WriteQueue(this, transport, mPool, mHost.getHostAddress());
+        mTransport.set(transport);
+        mStats.reconnected();
+        mLogger.info("reconnected to " + mHost.getHostAddress());
+
+        // Closed while connecting
+        if (mClosed && mTransport.compareAndSet(transport, null)) {
+            mWriteQueue.close();
+            try {
+                transport.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void failPending(IOException e)
+    {
+        // Held frames first, so failing those in flight does not release them
+        mScheduler.fail(e);
+
+        Iterator<Integer> iter = mPending.keySet().iterator();
+        while (iter.hasNext()) {
+            Integer seq = iter.next();
+            CompletableFuture<ByteBuffer> future = mPending.remove(seq);
+            mStreams.remove(seq);
+            if (future != null)
+                future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Refresh the state of a single light and report any difference to
+     * the LightListeners. Returns the LightListener bits of what changed.
+     **/
+    public int updateLightStatus(Light light) throws IOException
+    {
+        return await(updateLightStatusAsync(light));
+    }
+
+    public CompletableFuture<Integer> updateLightStatusAsync(Light light)
+    {
+        ByteBuffer data = mPool.acquire();
+        try {
+            encodeLightStatus(data, light);
+            data.flip();
+            return sendAsync(data, PRIORITY_STATUS).thenApply(frame -> parseLightStatus(light, frame));
+        } finally {
+            mPool.release(data);
+        }
+    }
+
+    private int parseLightStatus(Light light, ByteBuffer data)
+    {
+        // Format: <H27x2BH4B16x
+        if (data.limit() < 37)
+            throw new CompletionException(new IOException("Short light status: " + data.limit()));
+        // An error or a stale reply must not be stored as fresh state
+        if (data.get(8) != 0)
+            throw new CompletionException(new IOException("Gateway rejected status request for " + light.addr()
+                                                          + ", status " + (data.get(8) & 0xff)));
+        long addr = data.getLong(11);
+        if (addr != light.addr().value())
+            throw new CompletionException(new IOException("Status of " + new Light.Address(addr)
+                                                          + " in reply for " + light.addr()));
+
+        boolean on = data.get(29) != 0;
+        byte lum = data.get(30);
+        short temp = data.getShort(31);
+        byte red = data.get(33);
+        byte green = data.get(34);
+        byte blue = data.get(35);
+
+        int changes = 0;
+        if (light.on() != on)
+            changes |= LightListener.ONOFF;
+        if (light.lum() != lum)
+            changes |= LightListener.LUMINANCE;
+        if (light.temp() != temp)
+            changes |= LightListener.TEMPERATURE;
+        if (light.red() != red || light.green() != green || light.blue() != blue)
+            changes |= LightListener.COLOUR;
+
+        light.updateStatus(on, lum, temp, red, green, blue);
+        light.mFetched = System.nanoTime();
+
+        if (changes != 0) {
+            // The cached all-light record no longer describes the store
+            if (mLights.get(light.addr().value()) == light)
+                mRecords.invalidate(light.slot());
+            if (mLogger.isLoggable(Level.FINE))
+                mLogger.fine("status: " + light.addr() + " onoff: " + on + " lum: " + lum
+                             + " temp: " + temp + " rgb: " + red + " " + green + " " + blue);
+            fireLightChanged(light, changes);
+        }
+        return changes;
+    }
+
+    public void addLightListener(LightListener listener)
+    {
+        mListeners.add(listener);
+    }
+
+    public void removeLightListener(LightListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    void invalidateStatus(int slot)
+    {
+        mRecords.invalidate(slot);
+    }
+
+    /**
+     * Refresh the state of all lights. Only records that differ from the
+     * previous refresh are decoded, and each difference is reported to
+     * the LightListeners. Returns the number of lights added, changed
+     * or removed.
+     **/
+    public int updateAllLightStatus() throws IOException
+    {
+        return await(updateAllLightStatusAsync());
+    }
 
-            mLogger.info("light: " + a + " " + addr + " '" + name + "'");
-
-            Light light;
-            if (old_lights.containsKey(addr))
-                light = old_lights.get(addr);
-            else
-                light = new Light(this, addr, name);
-
-            payload.position(pos + 10);
-            // Format: <Q2BH4B
-
-            byte[] b = new byte[8];
-            payload.get(b);
-
-            payload.position(pos + 10);
-            byte lightType = payload.get();
-            payload.position(pos + 15);
-            byte onlineStatus = payload.get();
- 
-            payload.position(pos + 18);
-            boolean on = payload.get() != 0;
-            byte lum = payload.get();
-            short temp = payload.getShort();
-            byte red = payload.get();
-            byte green = payload.get();
-            byte blue = payload.get();
-            byte alpha = payload.get();
-            mLogger.info("status: " + toHexString(b));
-
-            mLogger.info("type:   " + lightType);
-            mLogger.info("online: " + onlineStatus);
-            mLogger.info("onoff:  " + on);
-            mLogger.info("temp:   " + temp);
-            mLogger.info("lum:    " + lum);
-            mLogger.info("red:    " + red);
-            mLogger.info("green:  " + green);
-            mLogger.info("blue:   " + blue);
-
-            light.updateStatus(on, lum, temp, red, green, blue);
-            new_lights.put(addr, light);
-            // return (on, lum, temp, red, green, blue);
-
-        }
-
-        mLights = new_lights;
+    public CompletableFuture<Integer> updateAllLightStatusAsync()
+    {
+        StatusRefresh refresh = new StatusRefresh();
+        CompletableFuture<Void> status = allLightStatusAsync(refresh);
+        status.whenComplete((v, e) -> {
+                if (e != null)
+                    refresh.abort();
+            });
+        return cancelling(status.thenApply(v -> refresh.changed()), status);
+    }
+
+    /**
+     * Request the status of all lights and hand each record to handler
+     * on the reader thread as soon as it has been received.
+     **/
+    public CompletableFuture<Void> allLightStatusAsync(StatusDecoder.Handler handler)
+    {
+        ByteBuffer data = mPool.acquire();
+        try {
+            encodeAllLightStatus(data, (byte)1);
+            data.flip();
+            CompletableFuture<ByteBuffer> request = sendAsync(data, new StatusDecoder(handler), PRIORITY_BULK);
+            return cancelling(request.thenApply(frame -> (Void)null), request);
+        } finally {
+            mPool.release(data);
+        }
+    }
+
+    /** Applies streamed status records to the registry and store. **/
+    private class StatusRefresh implements StatusDecoder.Handler
+    {
+        private int mChanged;
+        private int mGen;
+        // New lights, published together at the end
+        private LongMap<Light> mAdded;
+        // Ended or aborted; records arriving late are ignored
+        private boolean mDone;
+
+        StatusRefresh()
+        {
+            mGen = mGeneration.incrementAndGet();
+        }
+
+        int changed()
+        {
+            return mChanged;
+        }
+
+        // Synchronized since a timeout may abort from the timer thread while records arrive
+        public synchronized void record(StatusCursor status)
+        {
+            if (mDone)
+                return;
+
+            long addr = status.address();
+            Light light = lights().get(addr);
+
+            if (light == null && mAdded != null)
+                light = mAdded.get(addr);
+            if (light == null) {
+                if (mAdded == null)
+                    mAdded = new LongMap<Light>();
+                light = new Light(Connection.this, addr, status.name());
+                mAdded.put(addr, light);
+                light.mRefreshed = mGen;
+                light.mFetched = System.nanoTime();
+                updateStatus(light, status);
+                mRecords.remember(light.slot(), status.buffer(), status.offset());
+                return;
+            }
+
+            light.mRefreshed = mGen;
+            light.mFetched = System.nanoTime();
+            if (mRecords.matches(light.slot(), status.buffer(), status.offset()))
+                return;
+
+            int changes = updateStatus(light, status);
+            mRecords.remember(light.slot(), status.buffer(), status.offset());
+            if (changes != 0) {
+                mChanged++;
+                fireLightChanged(light, changes);
+            }
+        }
+
+        public synchronized void end(int count)
+        {
+            if (mDone)
+                return;
+            mDone = true;
+
+            // Drop lights the gateway no longer reports
+            ArrayList<Light> gone = null;
+            for (Light light : lights().values()) {
+                if (light.mRefreshed != mGen) {
+                    if (gone == null)
+                        gone = new ArrayList<Light>();
+                    gone.add(light);
+                }
+            }
+
+            if (mAdded != null || gone != null) {
+                List<Light> added = publishLights(mAdded, gone);
+                mAdded = null;
+                for (Light light : added) {
+                    mChanged++;
+                    fireLightAdded(light);
+                }
+            }
+            if (gone != null) {
+                for (Light light : gone) {
+                    mRecords.invalidate(light.slot());
+                    light.detach();
+                    mChanged++;
+                    fireLightRemoved(light);
+                }
+            }
+
+            if (mLogger.isLoggable(Level.FINE))
+                mLogger.fine("light status num: " + count + " changed: " + mChanged);
+        }
+
+        /**
+         * The response failed or was cut short. Free the store slots of
+         * the new lights, which were never published.
+         **/
+        synchronized void abort()
+        {
+            mDone = true;
+            if (mAdded == null)
+                return;
+
+            for (Light light : mAdded.values()) {
+                mRecords.invalidate(light.slot());
+                light.detach();
+            }
+            mAdded = null;
+        }
+    }
+
+    /** Store a status record into light and return the LightListener bits of what changed. **/
+    private int updateStatus(Light light, StatusCursor status)
+    {
+        byte lightType = status.type();
+        byte online = status.online();
+        boolean on = status.on();
+        byte lum = status.lum();
+        short temp = status.temp();
+        byte red = status.red();
+        byte green = status.green();
+        byte blue = status.blue();
+
+        int changes = 0;
+        if (light.on() != on)
+            changes |= LightListener.ONOFF;
+        if (light.lum() != lum)
+            changes |= LightListener.LUMINANCE;
+        if (light.temp() != temp)
+            changes |= LightListener.TEMPERATURE;
+        if (light.red() != red || light.green() != green || light.blue() != blue)
+            changes |= LightListener.COLOUR;
+        if (light.online() != online)
+            changes |= LightListener.ONLINE;
+
+        if (!mRecords.nameMatches(light.slot(), status.buffer(), status.offset())
+            && !status.name().equals(light.name())) {
+            String name = status.name();
+            synchronized (mRegistryLock) {
+                // Only lights already published are indexed
+                if (mLights.get(light.addr().value()) == light)
+                    mLightNames.rename(light.name(), name, light);
+                light.setName(name);
+            }
+            changes |= LightListener.NAME;
+        }
+
+        light.updateStatus(on, lum, temp, red, green, blue);
+        mStore.setOnline(light.slot(), online);
+        mStore.setType(light.slot(), lightType);
+
+        if (changes != 0 && mLogger.isLoggable(Level.FINE))
+            mLogger.fine("light: " + light.addr() + " '" + light.name() + "' type: " + lightType
+                         + " online: " + online + " onoff: " + on + " lum: " + lum
+                         + " temp: " + temp + " rgb: " + red + " " + green + " " + blue);
+        return changes;
+    }
+
+    private void fireLightAdded(Light light)
+    {
+        for (LightListener listener : mListeners) {
+            listener.lightAdded(light);
+        }
+    }
+
+    private void fireLightChanged(Light light, int changes)
+    {
+        for (LightListener listener : mListeners) {
+            listener.lightChanged(light, changes);
+        }
+    }
+
+    private void fireLightRemoved(Light light)
+    {
+        for (LightListener listener : mListeners) {
+            listener.lightRemoved(light);
+        }
     }
 }
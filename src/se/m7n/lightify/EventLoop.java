@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread that drives the sockets of any number of
+ * Connections. Pass the same loop to several Connection constructors to
+ * multiplex their gateways; use a few loops to spread very large fleets
+ * over more than one core.
+ **/
+public class EventLoop implements Closeable
+{
+    interface Handler
+    {
+        void ready(SelectionKey key) throws IOException;
+        void failed(IOException e);
+    }
+
+    private Logger mLogger;
+    private Selector mSelector;
+    private ConcurrentLinkedQueue<Runnable> mTasks;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    public EventLoop() throws IOException
+    {
+        this("lightify-loop");
+    }
+
+    public EventLoop(String name) throws IOException
+    {
+        mLogger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        mSelector = Selector.open();
+        mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        mThread = new Thread(() -> run(), name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Stop the loop and close every channel registered with it. **/
+    public void close() throws IOException
+    {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    /** Run a task on the loop thread. **/
+    void execute(Runnable task)
+    {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    void wakeup()
+    {
+        mSelector.wakeup();
+    }
+
+    void register(SelectableChannel channel, int ops, Handler handler)
+    {
+        execute(() -> {
+                try {
+                    channel.register(mSelector, ops, handler);
+                } catch (IOException e) {
+                    handler.failed(e);
+                }
+            });
+    }
+
+    private void run()
+    {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                runTasks();
+
+                Iterator<SelectionKey> iter = mSelector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    Handler handler = (Handler)key.attachment();
+                    try {
+                        if (key.isValid())
+                            handler.ready(key);
+                    } catch (IOException e) {
+                        key.cancel();
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (IOException|ClosedSelectorException e) {
+            mLogger.warning("event loop: " + e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void shutdown()
+    {
+        IOException e = new IOException("Event loop closed");
+
+        for (SelectionKey key : mSelector.keys()) {
+            key.cancel();
+            ((Handler)key.attachment()).failed(e);
+        }
+        try {
+            mSelector.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs one operation on many connections at once under a shared
+ * deadline. Every call returns only after all of its work has finished
+ * or been abandoned, with the results of the gateways that answered in
+ * time and the failure of each one that did not.
+ **/
+public final class Fleet
+{
+    /** Blocking operation on one connection. **/
+    public interface Task<T>
+    {
+        T call(Connection conn) throws IOException;
+    }
+
+    /** Per-gateway outcome of a fleet operation. **/
+    public static final class Result<T>
+    {
+        private final HashMap<Connection,T> mResults;
+        private final HashMap<Connection,Throwable> mFailures;
+
+        Result()
+        {
+            mResults = new HashMap<Connection,T>();
+            mFailures = new HashMap<Connection,Throwable>();
+        }
+
+        /** Results of the connections that succeeded in time. **/
+        public Map<Connection,T> results() { return mResults; }
+
+        /** Cause of failure of the others; a TimeoutException past the deadline. **/
+        public Map<Connection,Throwable> failures() { return mFailures; }
+
+        public boolean complete() { return mFailures.isEmpty(); }
+    }
+
+    private Fleet()
+    {
+    }
+
+    /**
+     * Refresh the status of all lights on every connection. The value
+     * for each connection is its number of changed lights. Needs no
+     * threads, as the refreshes run on the connections' readers.
+     **/
+    public static Result<Integer> refresh(Collection<Connection> conns, long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ArrayList<Connection> list = new ArrayList<Connection>(conns);
+        ArrayList<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+
+        for (Connection conn : list) {
+            futures.add(conn.updateAllLightStatusAsync());
+        }
+        return collect(list, futures, deadline);
+    }
+
+    /**
+     * Call task for every connection, each on its own thread from
+     * factory, for instance one making virtual threads. Tasks still
+     * running at the deadline fail with a TimeoutException and are
+     * interrupted; one that ignores the interrupt is left to finish on
+     * its own, as the call never waits past the deadline.
+     **/
+    public static <T> Result<T> run(Collection<Connection> conns, Task<T> task,
+                                    long timeout, TimeUnit unit, ThreadFactory factory)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ArrayList<Connection> list = new ArrayList<Connection>(conns);
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+        ExecutorService executor = Executors.newCachedThreadPool(factory);
+
+        try {
+            for (Connection conn : list) {
+                futures.add(executor.submit(() -> task.call(conn)));
+            }
+            return collect(list, futures, deadline);
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS))
+                executor.shutdownNow();
+        }
+    }
+
+    private static <T> Result<T> collect(List<Connection> conns, List<? extends Future<T>> futures,
+                                         long deadline)
+        throws InterruptedException
+    {
+        Result<T> res = new Result<T>();
+
+        for (int i = 0; i < conns.size(); i++) {
+            Future<T> future = futures.get(i);
+            Connection conn = conns.get(i);
+
+            try {
+                res.mResults.put(conn, future.get(Math.max(deadline - System.nanoTime(), 0),
+                                                  TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                res.mFailures.put(conn, e.getCause());
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                res.mFailures.put(conn, e);
+            }
+        }
+        return res;
+    }
+}
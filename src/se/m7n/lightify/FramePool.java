@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Free list of fixed size little-endian buffers, large enough for any
+ * command frame. Once warm, acquire and release allocate nothing. The
+ * list is an array of slots claimed with compare-and-set, so threads
+ * never wait for each other.
+ **/
+public class FramePool
+{
+    /** Largest command frame: 16 byte header plus 6 bytes of colour. **/
+    public static final int FRAME_SIZE = 32;
+
+    private AtomicReferenceArray<ByteBuffer> mFree;
+    private boolean mDirect;
+
+    public FramePool(int capacity, boolean direct)
+    {
+        mFree = new AtomicReferenceArray<ByteBuffer>(capacity);
+        mDirect = direct;
+    }
+
+    /** A cleared buffer, taken from the pool or allocated if it is empty. **/
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buf = null;
+
+        for (int i = 0; i < mFree.length() && buf == null; i++) {
+            ByteBuffer free = mFree.get(i);
+            if (free != null && mFree.compareAndSet(i, free, null))
+                buf = free;
+        }
+
+        if (buf == null) {
+            buf = mDirect ? ByteBuffer.allocateDirect(FRAME_SIZE) : ByteBuffer.allocate(FRAME_SIZE);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /** Return a buffer; dropped if the pool is full. **/
+    public void release(ByteBuffer buf)
+    {
+        for (int i = 0; i < mFree.length(); i++) {
+            if (mFree.get(i) == null && mFree.compareAndSet(i, null, buf))
+                return;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits received bytes into <H length prefixed frames, whatever the
+ * read boundaries. Frames are buffered whole and dispatched to the
+ * Connection, unless a FrameStream was registered for their sequence
+ * number, in which case the bytes are passed on as they arrive.
+ **/
+class FrameReader
+{
+    // Format: <H2BI
+    private static final int HEADER_SIZE = 8;
+
+    private Logger mLogger;
+    private Connection mConn;
+    private ByteBuffer mHeader;
+    private ByteBuffer mFrame;
+    private FrameStream mStream;
+    private RuntimeException mStreamError;
+    private int mSeq;
+    private int mRemaining;
+
+    FrameReader(Connection conn)
+    {
+        mLogger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        mConn = conn;
+        mHeader = ByteBuffer.allocate(HEADER_SIZE);
+        mHeader.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Consume all remaining bytes of in. **/
+    void feed(ByteBuffer in) throws IOException
+    {
+        mConn.received(in.remaining());
+        while (in.hasRemaining()) {
+            if (mHeader.hasRemaining()) {
+                transfer(in, mHeader);
+                if (!mHeader.hasRemaining())
+                    startFrame();
+                continue;
+            }
+
+            int limit = in.limit();
+            in.limit(in.position() + Math.min(in.remaining(), mRemaining));
+            mRemaining = mRemaining - in.remaining();
+
+            if (mFrame != null)
+                mFrame.put(in);
+            else
+                feedStream(in);
+
+            in.limit(limit);
+            if (mRemaining == 0)
+                endFrame();
+        }
+    }
+
+    /** Copy as many bytes from src as fit in dst. **/
+    static void transfer(ByteBuffer src, ByteBuffer dst)
+    {
+        int limit = src.limit();
+        src.limit(src.position() + Math.min(src.remaining(), dst.remaining()));
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    private void startFrame() throws IOException
+    {
+        int length = 2 + (mHeader.getShort(0) & 0xffff);
+
+        if (length < HEADER_SIZE)
+            throw new IOException("Bad frame length " + length);
+
+        mHeader.flip();
+        mSeq = Connection.frameSeq(mHeader);
+        mRemaining = length - HEADER_SIZE;
+        mStream = mConn.stream(mSeq);
+
+        if (mStream != null) {
+            // Streamed responses are traced by their header only
+            Trace trace = mConn.trace();
+            if (trace != null)
+                trace.record(Trace.RECEIVED, mHeader);
+            feedStream(mHeader);
+        } else {
+            mFrame = ByteBuffer.allocate(length);
+            mFrame.order(ByteOrder.LITTLE_ENDIAN);
+            mFrame.put(mHeader);
+        }
+
+        if (mRemaining == 0)
+            endFrame();
+    }
+
+    private void feedStream(ByteBuffer chunk)
+    {
+        if (mStreamError == null) {
+            try {
+                mStream.feed(chunk);
+            } catch (RuntimeException e) {
+                mStreamError = e;
+            }
+        }
+        chunk.position(chunk.limit());
+    }
+
+    private void endFrame()
+    {
+        if (mFrame != null) {
+            ByteBuffer frame = mFrame;
+            frame.flip();
+            mFrame = null;
+            Trace trace = mConn.trace();
+            if (trace != null)
+                trace.record(Trace.RECEIVED, frame);
+            if (mLogger.isLoggable(Level.FINEST))
+                mLogger.finest("received '" + Connection.toHexString(frame) + "'");
+            mConn.dispatch(frame);
+        } else {
+            FrameStream stream = mStream;
+            RuntimeException error = mStreamError;
+            mStream = null;
+            mStreamError = null;
+
+            if (error == null) {
+                try {
+                    stream.end();
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+            }
+            mConn.streamDone(mSeq, error);
+        }
+        mHeader.clear();
+    }
+}
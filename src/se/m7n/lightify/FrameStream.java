@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Consumes a response frame while it is being received, instead of
+ * having it buffered whole. Called on the connection's reader thread.
+ **/
+interface FrameStream
+{
+    /** The next bytes of the frame, starting at its length prefix. All are consumed. **/
+    void feed(ByteBuffer chunk);
+
+    /** The last byte of the frame has been fed. **/
+    void end();
+}
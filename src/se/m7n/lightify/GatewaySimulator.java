@@ -0,0 +1,440 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stand-in for a Lightify gateway, for benchmarks and load
+ * tests. It answers the status, group and setter commands with frames
+ * laid out like the gateway's, keeps the state the setters change, and
+ * can add latency, jitter, fragmentation and faults. Each client is
+ * served by its own thread, one request at a time and in order, like
+ * the gateway does.
+ *
+ * Lights have the addresses BASE_ADDRESS + i and the names "light<i>".
+ * Group idx g (1 based) holds every light i with i % groups == g - 1.
+ **/
+public class GatewaySimulator implements Closeable
+{
+    public static final long BASE_ADDRESS = 0x84182600000000L;
+
+    // A u16 frame length fits this many 42 byte status records
+    public static final int MAX_STATUS_RECORDS = (0xffff - 9) / StatusCursor.RECORD_SIZE;
+
+    private ServerSocket mServer;
+    private Thread mAcceptor;
+    private Set<Socket> mClients;
+    private volatile boolean mClosed;
+    private AtomicLong mRequests;
+
+    private int mGroups;
+    private boolean[] mOn;
+    private byte[] mLum;
+    private short[] mTemp;
+    private byte[] mR;
+    private byte[] mG;
+    private byte[] mB;
+
+    private volatile int mLatency;
+    private volatile int mJitter;
+    private volatile int mFragment;
+    private volatile double mDropRate;
+    private volatile double mDisconnectRate;
+    private volatile double mErrorRate;
+
+    /** Simulate lights lights in groups groups on port, 0 for any free port. **/
+    public GatewaySimulator(int port, int lights, int groups) throws IOException
+    {
+        if (lights < 0 || groups < 0 || groups > 255)
+            throw new IllegalArgumentException("Bad fleet: " + lights + " lights, " + groups + " groups");
+
+        mGroups = groups;
+        mOn = new boolean[lights];
+        mLum = new byte[lights];
+        mTemp = new short[lights];
+        mR = new byte[lights];
+        mG = new byte[lights];
+        mB = new byte[lights];
+        for (int i = 0; i < lights; i++) {
+            mLum[i] = 100;
+            mTemp[i] = 2700;
+            mR[i] = (byte)0xff;
+            mG[i] = (byte)0xff;
+            mB[i] = (byte)0xff;
+        }
+
+        mClients = Collections.synchronizedSet(new HashSet<Socket>());
+        mRequests = new AtomicLong();
+        mServer = new ServerSocket();
+        mServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        mAcceptor = new Thread(() -> acceptLoop(), "gateway-simulator");
+        mAcceptor.setDaemon(true);
+        mAcceptor.start();
+    }
+
+    /** Port actually listened on. **/
+    public int port()
+    {
+        return mServer.getLocalPort();
+    }
+
+    public InetAddress address()
+    {
+        return mServer.getInetAddress();
+    }
+
+    /** Requests received so far, answered or not. **/
+    public long requests()
+    {
+        return mRequests.get();
+    }
+
+    /** Delay every response by latency plus up to jitter milliseconds. **/
+    public void setLatency(int latency, int jitter)
+    {
+        mLatency = latency;
+        mJitter = jitter;
+    }
+
+    /** Write responses in pieces of at most size bytes, 0 for whole frames. **/
+    public void setFragment(int size)
+    {
+        mFragment = size;
+    }
+
+    /**
+     * Leave a fraction of the requests unanswered, drop the connection
+     * instead of answering a fraction, and answer a fraction with a
+     * nonzero status byte.
+     **/
+    public void setFaults(double dropRate, double disconnectRate, double errorRate)
+    {
+        mDropRate = dropRate;
+        mDisconnectRate = disconnectRate;
+        mErrorRate = errorRate;
+    }
+
+    /** Stop listening and drop every client. **/
+    public void close() throws IOException
+    {
+        mClosed = true;
+        mServer.close();
+
+        Socket[] clients;
+        synchronized (mClients) {
+            clients = mClients.toArray(new Socket[mClients.size()]);
+        }
+        for (Socket client : clients) {
+            client.close();
+        }
+    }
+
+    private void acceptLoop()
+    {
+        while (!mClosed) {
+            try {
+                Socket client = mServer.accept();
+                client.setTcpNoDelay(true);
+                mClients.add(client);
+
+                Thread thread = new Thread(() -> serve(client),
+                                           "gateway-simulator-" + client.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(Socket client)
+    {
+        try (Socket sock = client) {
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            OutputStream out = sock.getOutputStream();
+            byte[] request = new byte[0xffff + 2];
+
+            while (true) {
+                // Format: <H
+                int lo = in.read();
+                if (lo < 0)
+                    return;
+                int len = lo | in.readUnsignedByte() << 8;
+                if (len < 6)
+                    return;
+                in.readFully(request, 2, len);
+                request[0] = (byte)lo;
+                request[1] = (byte)(len >> 8);
+                mRequests.incrementAndGet();
+
+                ByteBuffer req = ByteBuffer.wrap(request, 0, 2 + len);
+                req.order(ByteOrder.LITTLE_ENDIAN);
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                if (random.nextDouble() < mDisconnectRate)
+                    return;
+                if (random.nextDouble() < mDropRate)
+                    continue;
+
+                ByteBuffer res = respond(req, random.nextDouble() < mErrorRate);
+                if (res == null)
+                    continue;
+
+                int delay = mLatency + (mJitter > 0 ? random.nextInt(mJitter + 1) : 0);
+                if (delay > 0)
+                    Thread.sleep(delay);
+                write(out, res);
+            }
+        } catch (IOException e) {
+            // Client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mClients.remove(client);
+        }
+    }
+
+    private void write(OutputStream out, ByteBuffer res) throws IOException
+    {
+        int fragment = mFragment;
+
+        if (fragment <= 0) {
+            out.write(res.array(), 0, res.limit());
+            return;
+        }
+
+        for (int pos = 0; pos < res.limit(); pos += fragment) {
+            out.write(res.array(), pos, Math.min(fragment, res.limit() - pos));
+            out.flush();
+        }
+    }
+
+    /** Response to the request frame req, or null for an unknown command. **/
+    private ByteBuffer respond(ByteBuffer req, boolean error)
+    {
+        // Format: <H2BI
+        byte flag = req.get(2);
+        byte command = req.get(3);
+        int seq = req.getInt(4);
+        ByteBuffer res;
+
+        try {
+            switch (command) {
+            case Connection.COMMAND_ALL_LIGHT_STATUS:
+                res = allLightStatus();
+                break;
+            case Connection.COMMAND_GROUP_LIST:
+                res = groupList();
+                break;
+            case Connection.COMMAND_GROUP_INFO:
+                res = groupInfo(req.get(8) & 0xff);
+                break;
+            case Connection.COMMAND_LIGHT_STATUS:
+                res = lightStatus(req.getLong(8));
+                break;
+            case Connection.COMMAND_ONOFF:
+            case Connection.COMMAND_LUMINANCE:
+            case Connection.COMMAND_TEMP:
+            case Connection.COMMAND_COLOUR:
+                res = setter(req, flag, command);
+                break;
+            default:
+                return null;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Too short for its command
+            return null;
+        }
+
+        // Format: <H2BIB
+        res.putShort(0, (short)(res.position() - 2));
+        res.put(2, flag);
+        res.put(3, command);
+        res.putInt(4, seq);
+        res.put(8, (byte)(error ? 1 : 0));
+        res.flip();
+        return res;
+    }
+
+    private static ByteBuffer frame(int payload)
+    {
+        ByteBuffer res = ByteBuffer.allocate(9 + payload);
+        res.order(ByteOrder.LITTLE_ENDIAN);
+        res.position(9);
+        return res;
+    }
+
+    private static void putName(ByteBuffer res, String name)
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        int len = Math.min(bytes.length, 16);
+        res.put(bytes, 0, len);
+        for (int i = len; i < 16; i++) {
+            res.put((byte)0);
+        }
+    }
+
+    private synchronized ByteBuffer allLightStatus()
+    {
+        int count = Math.min(mOn.length, MAX_STATUS_RECORDS);
+        ByteBuffer res = frame(2 + count * StatusCursor.RECORD_SIZE);
+
+        // Format: <H, then <HQB4xB2x2BH4B16s per light
+        res.putShort((short)count);
+        for (int i = 0; i < count; i++) {
+            res.putShort((short)i);
+            res.putLong(BASE_ADDRESS + i);
+            res.put((byte)2);
+            res.put(new byte[4]);
+            res.put((byte)2);
+            res.put(new byte[2]);
+            res.put((byte)(mOn[i] ? 1 : 0));
+            res.put(mLum[i]);
+            res.putShort(mTemp[i]);
+            res.put(mR[i]);
+            res.put(mG[i]);
+            res.put(mB[i]);
+            res.put((byte)0xff);
+            putName(res, "light" + i);
+        }
+        return res;
+    }
+
+    private ByteBuffer groupList()
+    {
+        ByteBuffer res = frame(2 + mGroups * 18);
+
+        // Format: <H, then <H16s per group
+        res.putShort((short)mGroups);
+        for (int g = 1; g <= mGroups; g++) {
+            res.putShort((short)g);
+            putName(res, "group" + g);
+        }
+        return res;
+    }
+
+    private ByteBuffer groupInfo(int idx)
+    {
+        int count = 0;
+        if (idx >= 1 && idx <= mGroups) {
+            for (int i = idx - 1; i < mOn.length && count < 255; i += mGroups) {
+                count++;
+            }
+        }
+        ByteBuffer res = frame(19 + count * 8);
+
+        // Format: <H16sB, then <Q per member
+        res.putShort((short)idx);
+        putName(res, "group" + idx);
+        res.put((byte)count);
+        for (int i = 0; i < count; i++) {
+            res.putLong(BASE_ADDRESS + idx - 1 + (long)i * mGroups);
+        }
+        return res;
+    }
+
+    private synchronized ByteBuffer lightStatus(long addr)
+    {
+        int i = light(addr);
+        ByteBuffer res = frame(44);
+
+        // Format: <HQ10x2BH4B16x
+        res.putShort((short)1);
+        res.putLong(addr);
+        res.put(new byte[10]);
+        if (i >= 0) {
+            res.put((byte)(mOn[i] ? 1 : 0));
+            res.put(mLum[i]);
+            res.putShort(mTemp[i]);
+            res.put(mR[i]);
+            res.put(mG[i]);
+            res.put(mB[i]);
+            res.put((byte)0xff);
+        } else {
+            res.put(new byte[8]);
+        }
+        res.put(new byte[16]);
+        return res;
+    }
+
+    private synchronized ByteBuffer setter(ByteBuffer req, byte flag, byte command)
+    {
+        long addr = req.getLong(8);
+
+        if (flag == 0) {
+            int i = light(addr);
+            if (i >= 0)
+                apply(i, req, command);
+        } else {
+            int idx = (int)addr;
+            for (int i = idx - 1; idx >= 1 && idx <= mGroups && i < mOn.length; i += mGroups) {
+                apply(i, req, command);
+            }
+        }
+
+        ByteBuffer res = frame(9);
+
+        // Format: <QB
+        res.putLong(addr);
+        res.put((byte)0);
+        return res;
+    }
+
+    private void apply(int i, ByteBuffer req, byte command)
+    {
+        switch (command) {
+        case Connection.COMMAND_ONOFF:
+            mOn[i] = req.get(16) != 0;
+            break;
+        case Connection.COMMAND_LUMINANCE:
+            mLum[i] = req.get(16);
+            break;
+        case Connection.COMMAND_TEMP:
+            mTemp[i] = req.getShort(16);
+            break;
+        default:
+            mR[i] = req.get(16);
+            mG[i] = req.get(17);
+            mB[i] = req.get(18);
+            break;
+        }
+    }
+
+    private int light(long addr)
+    {
+        long i = addr - BASE_ADDRESS;
+        return i >= 0 && i < mOn.length ? (int)i : -1;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Request counts, bytes, timeouts and per-command latency histograms of
+ * a Connection, see Connection.stats(). Recording only bumps LongAdders
+ * and histogram buckets, so it is always on; nothing is allocated per
+ * request. Commands are indexed by their command byte.
+ **/
+public class GatewayStats implements GatewayStatsMXBean
+{
+    public static final String DOMAIN = "se.m7n.lightify";
+
+    private static final byte[] COMMANDS = {
+        Connection.COMMAND_ALL_LIGHT_STATUS,
+        Connection.COMMAND_GROUP_LIST,
+        Connection.COMMAND_GROUP_INFO,
+        Connection.COMMAND_LUMINANCE,
+        Connection.COMMAND_ONOFF,
+        Connection.COMMAND_TEMP,
+        Connection.COMMAND_COLOUR,
+        Connection.COMMAND_LIGHT_STATUS,
+    };
+    private static final String[] NAMES = {
+        "ALL_LIGHT_STATUS", "GROUP_LIST", "GROUP_INFO", "LUMINANCE",
+        "ONOFF", "TEMP", "COLOUR", "LIGHT_STATUS", "OTHER",
+    };
+    private static final int OTHER = COMMANDS.length;
+    private static final byte[] SLOTS = new byte[256];
+
+    static {
+        for (int i = 0; i < SLOTS.length; i++) {
+            SLOTS[i] = (byte)OTHER;
+        }
+        for (int i = 0; i < COMMANDS.length; i++) {
+            SLOTS[COMMANDS[i] & 0xff] = (byte)i;
+        }
+    }
+
+    private Connection mConn;
+    private String mGateway;
+    private LongAdder[] mRequests;
+    private LongAdder[] mErrors;
+    private LongAdder[] mTimeouts;
+    private LatencyHistogram[] mLatency;
+    private LongAdder mBytesSent;
+    private LongAdder mBytesReceived;
+    private LongAdder mReconnects;
+    private ObjectName mName;
+
+    GatewayStats(Connection conn, String gateway)
+    {
+        mConn = conn;
+        mGateway = gateway;
+        mRequests = adders(OTHER + 1);
+        mErrors = adders(OTHER + 1);
+        mTimeouts = adders(OTHER + 1);
+        mLatency = new LatencyHistogram[OTHER + 1];
+        for (int i = 0; i < mLatency.length; i++) {
+            mLatency[i] = new LatencyHistogram();
+        }
+        mBytesSent = new LongAdder();
+        mBytesReceived = new LongAdder();
+        mReconnects = new LongAdder();
+    }
+
+    private static LongAdder[] adders(int count)
+    {
+        LongAdder[] res = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            res[i] = new LongAdder();
+        }
+        return res;
+    }
+
+    /**
+     * Register with the platform MBeanServer as
+     * se.m7n.lightify:type=Gateway,name="host:port", plus an id if
+     * another connection to the same gateway got there first.
+     * Connection.close() unregisters.
+     **/
+    public synchronized ObjectName register() throws IOException
+    {
+        if (mName != null)
+            return mName;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String base = DOMAIN + ":type=Gateway,name=" + ObjectName.quote(mGateway);
+        try {
+            ObjectName name = new ObjectName(base);
+            for (int id = 2; server.isRegistered(name); id++) {
+                name = new ObjectName(base + ",id=" + id);
+            }
+            server.registerMBean(this, name);
+            mName = name;
+        } catch (JMException e) {
+            throw new IOException("Cannot register " + base, e);
+        }
+        return mName;
+    }
+
+    public synchronized void unregister()
+    {
+        if (mName == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+        } catch (JMException ignore) {
+            // Already gone
+        }
+        mName = null;
+    }
+
+    /** A request with command byte command was written. **/
+    void started(byte command)
+    {
+        mRequests[SLOTS[command & 0xff]].increment();
+    }
+
+    /** The request started at sent, in System.nanoTime(), completed with error or null. **/
+    void completed(byte command, long sent, Throwable error)
+    {
+        int slot = SLOTS[command & 0xff];
+
+        if (error == null)
+            mLatency[slot].record(System.nanoTime() - sent);
+        else if (error instanceof GatewayTimeoutException)
+            mTimeouts[slot].increment();
+        else
+            mErrors[slot].increment();
+    }
+
+    void sent(int bytes)
+    {
+        mBytesSent.add(bytes);
+    }
+
+    void received(int bytes)
+    {
+        mBytesReceived.add(bytes);
+    }
+
+    void reconnected()
+    {
+        mReconnects.increment();
+    }
+
+    /** Latencies of successful requests with command byte command. **/
+    public LatencyHistogram latency(byte command)
+    {
+        return mLatency[SLOTS[command & 0xff]];
+    }
+
+    public String getGateway()
+    {
+        return mGateway;
+    }
+
+    public boolean isConnected()
+    {
+        return mConn.isConnected();
+    }
+
+    public long getRequests()
+    {
+        return sum(mRequests);
+    }
+
+    public long getResponses()
+    {
+        long res = 0;
+        for (LatencyHistogram latency : mLatency) {
+            res += latency.count();
+        }
+        return res;
+    }
+
+    public long getErrors()
+    {
+        return sum(mErrors);
+    }
+
+    public long getTimeouts()
+    {
+        return sum(mTimeouts);
+    }
+
+    public long getReconnects()
+    {
+        return mReconnects.sum();
+    }
+
+    public long getBytesSent()
+    {
+        return mBytesSent.sum();
+    }
+
+    public long getBytesReceived()
+    {
+        return mBytesReceived.sum();
+    }
+
+    public int getInFlight()
+    {
+        return mConn.inFlight();
+    }
+
+    public int getQueued()
+    {
+        return mConn.queued();
+    }
+
+    public List<CommandStats> getCommands()
+    {
+        ArrayList<CommandStats> res = new ArrayList<CommandStats>();
+
+        for (int i = 0; i <= OTHER; i++) {
+            long requests = mRequests[i].sum();
+            if (requests == 0)
+                continue;
+            res.add(new CommandStats(NAMES[i], i < OTHER ? COMMANDS[i] & 0xff : -1, requests,
+                                     mErrors[i].sum(), mTimeouts[i].sum(), mLatency[i]));
+        }
+        return res;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i <= OTHER; i++) {
+            mRequests[i].reset();
+            mErrors[i].reset();
+            mTimeouts[i].reset();
+            mLatency[i].interval();
+        }
+        mBytesSent.reset();
+        mBytesReceived.reset();
+        mReconnects.reset();
+    }
+
+    private static long sum(LongAdder[] adders)
+    {
+        long res = 0;
+        for (LongAdder adder : adders) {
+            res += adder.sum();
+        }
+        return res;
+    }
+}
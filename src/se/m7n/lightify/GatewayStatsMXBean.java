@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.util.List;
+
+/**
+ * Counters and latencies of one gateway Connection, registered with the
+ * platform MBeanServer by GatewayStats.register(). Latencies are in
+ * microseconds, from the write of a request to its response.
+ **/
+public interface GatewayStatsMXBean
+{
+    String getGateway();
+
+    boolean isConnected();
+
+    long getRequests();
+
+    long getResponses();
+
+    long getErrors();
+
+    long getTimeouts();
+
+    long getReconnects();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    int getInFlight();
+
+    int getQueued();
+
+    /** One entry per command byte seen, plus OTHER for unknown ones. **/
+    List<CommandStats> getCommands();
+
+    /** Zero the counters and histograms. **/
+    void reset();
+
+    public static class CommandStats
+    {
+        private String mName;
+        private int mCode;
+        private long mRequests;
+        private long mErrors;
+        private long mTimeouts;
+        private LatencyHistogram mLatency;
+
+        CommandStats(String name, int code, long requests, long errors, long timeouts,
+                     LatencyHistogram latency)
+        {
+            mName = name;
+            mCode = code;
+            mRequests = requests;
+            mErrors = errors;
+            mTimeouts = timeouts;
+            mLatency = latency;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        public int getCode()
+        {
+            return mCode;
+        }
+
+        public long getRequests()
+        {
+            return mRequests;
+        }
+
+        public long getResponses()
+        {
+            return mLatency.count();
+        }
+
+        public long getErrors()
+        {
+            return mErrors;
+        }
+
+        public long getTimeouts()
+        {
+            return mTimeouts;
+        }
+
+        public double getMeanMicros()
+        {
+            return mLatency.mean() / 1000;
+        }
+
+        public long getP50Micros()
+        {
+            return mLatency.percentile(50) / 1000;
+        }
+
+        public long getP99Micros()
+        {
+            return mLatency.percentile(99) / 1000;
+        }
+
+        public long getP999Micros()
+        {
+            return mLatency.percentile(99.9) / 1000;
+        }
+
+        public long getMaxMicros()
+        {
+            return mLatency.max() / 1000;
+        }
+    }
+}
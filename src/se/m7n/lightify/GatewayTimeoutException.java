@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+
+/** The gateway did not accept a connection or answer a request in time. **/
+public class GatewayTimeoutException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    public GatewayTimeoutException(String message)
+    {
+        super(message);
+    }
+
+    public GatewayTimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -22,7 +22,7 @@ public class Group extends Luminary
 {
     private Connection mConn;
     private byte mIdx;
-    private Light.Address[] mLights;
+    private volatile Light.Address[] mLights;
 
     public Group(Connection conn, byte idx, String name)
     {
@@ -52,6 +52,11 @@ public class Group extends Luminary
         return mConn.buildCommand(command, this, data);
     }
 
+    public void encodeCommand(ByteBuffer dst, byte command, int dataLength)
+    {
+        mConn.encodeCommand(dst, command, this, dataLength);
+    }
+
     // TODO
     // public String toString()
     // {
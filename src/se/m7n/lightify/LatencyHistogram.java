@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are log-linear:
+ * each power of two is split into 16, so a percentile is reported to
+ * within 1/16 of its value, from one nanosecond to centuries, in a
+ * fixed 960 bucket table. Any number of threads may record at once.
+ **/
+public class LatencyHistogram
+{
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private AtomicLongArray mCounts;
+    private LongAdder mCount;
+    private LongAdder mSum;
+    private LongAccumulator mMax;
+
+    public LatencyHistogram()
+    {
+        mCounts = new AtomicLongArray(BUCKETS);
+        mCount = new LongAdder();
+        mSum = new LongAdder();
+        mMax = new LongAccumulator(Math::max, 0);
+    }
+
+    static int index(long value)
+    {
+        if (value < SUB)
+            return (int)Math.max(value, 0);
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB + (int)((value >>> shift) & (SUB - 1));
+    }
+
+    /** Smallest value counted in bucket index. **/
+    static long lowerBound(int index)
+    {
+        if (index < SUB)
+            return index;
+
+        int shift = index / SUB - 1;
+        return (long)(SUB + index % SUB) << shift;
+    }
+
+    public void record(long nanos)
+    {
+        mCounts.incrementAndGet(index(nanos));
+        mCount.increment();
+        mSum.add(nanos);
+        mMax.accumulate(nanos);
+    }
+
+    public long count()
+    {
+        return mCount.sum();
+    }
+
+    public long max()
+    {
+        return mMax.get();
+    }
+
+    public double mean()
+    {
+        long count = mCount.sum();
+        return count == 0 ? 0 : (double)mSum.sum() / count;
+    }
+
+    /**
+     * Value below which percent of the recorded durations fall, rounded
+     * up to the end of its bucket, for instance percentile(99.9).
+     **/
+    public long percentile(double percent)
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        if (count == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, max());
+            }
+        }
+        return max();
+    }
+
+    /** Add the counts of other to this histogram. **/
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.mCounts.get(i);
+            if (count != 0)
+                mCounts.addAndGet(i, count);
+        }
+        mCount.add(other.mCount.sum());
+        mSum.add(other.mSum.sum());
+        mMax.accumulate(other.mMax.get());
+    }
+
+    /**
+     * Move everything recorded since the last call into a new histogram.
+     * Each duration lands in exactly one interval, even while threads
+     * keep recording, though the count, mean and max of an interval may
+     * be off by the durations recorded during the call.
+     **/
+    public LatencyHistogram interval()
+    {
+        LatencyHistogram res = new LatencyHistogram();
+
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = mCounts.getAndSet(i, 0);
+            if (count != 0)
+                res.mCounts.set(i, count);
+        }
+        res.mCount.add(mCount.sumThenReset());
+        res.mSum.add(mSum.sumThenReset());
+        res.mMax.accumulate(mMax.getThenReset());
+        return res;
+    }
+}
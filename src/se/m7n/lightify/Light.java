@@ -18,35 +18,95 @@ package se.m7n.lightify;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class Light extends Luminary
 {
     private Connection mConn;
     private Address mAddr;
-    private boolean mOn;
-    private byte mLum;
-    private short mTemp;
-    private byte mR;
-    private byte mG;
-    private byte mB;
+    // Where the state lives; replaced as a whole so readers never pair a store with another's slot
+    private volatile Slot mSlot;
+    int mRefreshed;
+    // System.nanoTime() of the last status received from the gateway, 0 if none
+    volatile long mFetched;
+    private CompletableFuture<Light> mFetching;
 
-    public static class Address
+    private static final class Slot
     {
-        private byte[] mAddr;
+        final LightStateStore mStore;
+        final int mIndex;
 
-        public Address(byte[] addr)
+        Slot(LightStateStore store, int index)
+        {
+            mStore = store;
+            mIndex = index;
+        }
+    }
+
+    /** Immutable 64 bit light address, sent little-endian (<Q). **/
+    public static final class Address
+    {
+        private final long mAddr;
+        private final ByteBuffer mData;
+
+        public Address(long addr)
         {
             mAddr = addr;
+            mData = encode(addr);
+        }
+
+        public Address(byte[] addr)
+        {
+            this(decode(addr));
+        }
+
+        /** Address in the first 8 little-endian bytes of addr. **/
+        static long decode(byte[] addr)
+        {
+            long value = 0;
+            for (int i = 7; i >= 0; i--) {
+                value = (value << 8) | (addr[i] & 0xff);
+            }
+            return value;
         }
 
-        public byte[] data()
+        private static ByteBuffer encode(long addr)
+        {
+            ByteBuffer data = ByteBuffer.allocate(8);
+            for (int i = 0; i < 8; i++) {
+                data.put(i, (byte)(addr >>> (8 * i)));
+            }
+            return data.asReadOnlyBuffer();
+        }
+
+        public long value()
         {
             return mAddr;
         }
 
+        /**
+         * Read-only view of the little-endian bytes of the address, shared
+         * by all callers; read it with absolute gets, or duplicate() it.
+         **/
+        public ByteBuffer data()
+        {
+            return mData;
+        }
+
+        public boolean equals(Object o)
+        {
+            return o instanceof Address && ((Address)o).mAddr == mAddr;
+        }
+
+        public int hashCode()
+        {
+            return Long.hashCode(mAddr);
+        }
+
         public String toString()
         {
-            return Connection.toHexString(mAddr);
+            return Connection.toHexString(data());
         }
     }
 
@@ -55,6 +115,13 @@ public class Light extends Luminary
         super(conn, name);
         mConn = conn;
         mAddr = addr;
+        LightStateStore store = conn.store();
+        mSlot = new Slot(store, store.allocate(addr.value()));
+    }
+
+    public Light(Connection conn, long addr, String name)
+    {
+        this(conn, new Address(addr), name);
     }
 
     public Address addr()
@@ -62,63 +129,165 @@ public class Light extends Luminary
         return mAddr;
     }
 
+    /** Slot of this light in the connection's LightStateStore. **/
+    public int slot()
+    {
+        return mSlot.mIndex;
+    }
+
+    /** Move the state into a private store once the light leaves the registry. **/
+    void detach()
+    {
+        Slot slot = mSlot;
+        mSlot = new Slot(slot.mStore.copyOf(slot.mIndex), 0);
+        slot.mStore.free(slot.mIndex);
+    }
+
+    /** Make the next refresh decode this light's record even if it is unchanged. **/
+    private void changedLocally()
+    {
+        Slot slot = mSlot;
+        if (slot.mStore == mConn.store())
+            mConn.invalidateStatus(slot.mIndex);
+    }
+
+    /** State commanded through a group or a plan, not yet confirmed by a refresh. **/
+    void setLocally(boolean on, byte lum, short temp, byte r, byte g, byte b)
+    {
+        Slot slot = mSlot;
+        slot.mStore.set(slot.mIndex, on, lum, temp, r, g, b);
+        changedLocally();
+    }
+
     public void updateStatus(boolean on, byte lum, short temp, byte r, byte g, byte b)
     {
-        mOn = on;
-        mLum = lum;
-        mTemp = temp;
-        mR = r;
-        mG = g;
-        mB = b;
+        Slot slot = mSlot;
+        slot.mStore.set(slot.mIndex, on, lum, temp, r, g, b);
+    }
+
+    /**
+     * This light, with its state fetched from the gateway first if the
+     * last status received is older than maxAge milliseconds. Callers
+     * asking at the same time share one status request.
+     **/
+    public Light fresh(long maxAge) throws IOException
+    {
+        return Connection.await(freshAsync(maxAge));
+    }
+
+    public CompletableFuture<Light> freshAsync(long maxAge)
+    {
+        long fetched = mFetched;
+        if (fetched != 0 && System.nanoTime() - fetched <= TimeUnit.MILLISECONDS.toNanos(maxAge))
+            return CompletableFuture.completedFuture(this);
+
+        // Only claim the fetch under the lock; the request may block in a write
+        CompletableFuture<Light> fetching;
+        synchronized (this) {
+            if (mFetching != null)
+                return mFetching;
+            fetching = new CompletableFuture<Light>();
+            mFetching = fetching;
+        }
+
+        fetching.whenComplete((light, e) -> fetchDone(fetching));
+        try {
+            mConn.updateLightStatusAsync(this).whenComplete((changes, e) -> {
+                    if (e != null)
+                        fetching.completeExceptionally(e);
+                    else
+                        fetching.complete(this);
+                });
+        } catch (RuntimeException e) {
+            fetching.completeExceptionally(e);
+        }
+        return fetching;
+    }
+
+    private synchronized void fetchDone(CompletableFuture<Light> fetching)
+    {
+        if (mFetching == fetching)
+            mFetching = null;
     }
 
     public boolean on()
     {
-        return mOn;
+        Slot slot = mSlot;
+        return slot.mStore.on(slot.mIndex);
     }
 
-    public void setOnOff(boolean on)
-        throws IOException
+    public CompletableFuture<ByteBuffer> setOnOffAsync(boolean on)
     {
-        mOn = on;
-        super.setOnOff(on);
+        Slot slot = mSlot;
+        slot.mStore.setOn(slot.mIndex, on);
+        changedLocally();
+        return super.setOnOffAsync(on);
     }
 
     public byte lum()
     {
-        return mLum;
+        Slot slot = mSlot;
+        return slot.mStore.lum(slot.mIndex);
     }
 
-    public void setLuminance(byte lum, short time)
-        throws IOException
+    public CompletableFuture<ByteBuffer> setLuminanceAsync(byte lum, short time)
     {
-        mLum = lum;
-        super.setLuminance(lum, time);
+        Slot slot = mSlot;
+        slot.mStore.setLum(slot.mIndex, lum);
+        changedLocally();
+        return super.setLuminanceAsync(lum, time);
     }
 
     public short temp()
     {
-        return mTemp;
+        Slot slot = mSlot;
+        return slot.mStore.temp(slot.mIndex);
     }
 
-    public void setTemperature(short temp, short time)
-        throws IOException
+    public CompletableFuture<ByteBuffer> setTemperatureAsync(short temp, short time)
     {
-        mTemp = temp;
-        super.setTemperature(temp, time);
+        Slot slot = mSlot;
+        slot.mStore.setTemp(slot.mIndex, temp);
+        changedLocally();
+        return super.setTemperatureAsync(temp, time);
     }
 
-    public byte red() { return mR; }
-    public byte green() { return mG; }
-    public byte blue() { return mB; }
-            
-    public void setRgb(byte r, byte g, byte b, short time)
-        throws IOException
+    public byte red()
     {
-        mR = r;
-        mG = g;
-        mB = b;
-        super.setRgb(r, g, b, time);
+        Slot slot = mSlot;
+        return slot.mStore.red(slot.mIndex);
+    }
+
+    public byte green()
+    {
+        Slot slot = mSlot;
+        return slot.mStore.green(slot.mIndex);
+    }
+
+    public byte blue()
+    {
+        Slot slot = mSlot;
+        return slot.mStore.blue(slot.mIndex);
+    }
+
+    public byte online()
+    {
+        Slot slot = mSlot;
+        return slot.mStore.online(slot.mIndex);
+    }
+
+    public byte type()
+    {
+        Slot slot = mSlot;
+        return slot.mStore.type(slot.mIndex);
+    }
+
+    public CompletableFuture<ByteBuffer> setRgbAsync(byte r, byte g, byte b, short time)
+    {
+        Slot slot = mSlot;
+        slot.mStore.setRgb(slot.mIndex, r, g, b);
+        changedLocally();
+        return super.setRgbAsync(r, g, b, time);
     }
 
     public ByteBuffer buildCommand(byte command, byte[] data)
@@ -126,6 +295,11 @@ public class Light extends Luminary
         return mConn.buildLightCommand(command, this, data);
     }
 
+    public void encodeCommand(ByteBuffer dst, byte command, int dataLength)
+    {
+        mConn.encodeLightCommand(dst, command, this, dataLength);
+    }
+
     public String toString()
     {
         return "<light: " + name() + ">";
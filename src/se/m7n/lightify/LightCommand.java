@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+
+/** A setter command with its arguments, independent of what it addresses. **/
+public final class LightCommand
+{
+    private final byte mCommand;
+    private final boolean mOn;
+    private final byte mLum;
+    private final short mTemp;
+    private final byte mR;
+    private final byte mG;
+    private final byte mB;
+    private final short mTime;
+
+    private LightCommand(byte command, boolean on, byte lum, short temp,
+                         byte r, byte g, byte b, short time)
+    {
+        mCommand = command;
+        mOn = on;
+        mLum = lum;
+        mTemp = temp;
+        mR = r;
+        mG = g;
+        mB = b;
+        mTime = time;
+    }
+
+    public static LightCommand onOff(boolean on)
+    {
+        return new LightCommand(Connection.COMMAND_ONOFF, on, (byte)0, (short)0,
+                                (byte)0, (byte)0, (byte)0, (short)0);
+    }
+
+    public static LightCommand luminance(byte lum, short time)
+    {
+        return new LightCommand(Connection.COMMAND_LUMINANCE, false, lum, (short)0,
+                                (byte)0, (byte)0, (byte)0, time);
+    }
+
+    public static LightCommand temperature(short temp, short time)
+    {
+        return new LightCommand(Connection.COMMAND_TEMP, false, (byte)0, temp,
+                                (byte)0, (byte)0, (byte)0, time);
+    }
+
+    public static LightCommand colour(byte r, byte g, byte b, short time)
+    {
+        return new LightCommand(Connection.COMMAND_COLOUR, false, (byte)0, (short)0,
+                                r, g, b, time);
+    }
+
+    /** One of the Connection.COMMAND_* setter bytes. **/
+    public byte command()
+    {
+        return mCommand;
+    }
+
+    /** Append the frame sending this command to item. **/
+    public void encode(Connection conn, ByteBuffer dst, Luminary item)
+    {
+        switch (mCommand) {
+        case Connection.COMMAND_ONOFF:
+            conn.encodeOnOff(dst, item, mOn);
+            break;
+        case Connection.COMMAND_LUMINANCE:
+            conn.encodeLuminance(dst, item, mLum, mTime);
+            break;
+        case Connection.COMMAND_TEMP:
+            conn.encodeTemp(dst, item, mTemp, mTime);
+            break;
+        default:
+            conn.encodeColor(dst, item, mR, mG, mB, mTime);
+            break;
+        }
+    }
+
+    /** Record the commanded state on light without sending anything. **/
+    void applyLocally(Light light)
+    {
+        switch (mCommand) {
+        case Connection.COMMAND_ONOFF:
+            light.setLocally(mOn, light.lum(), light.temp(), light.red(), light.green(), light.blue());
+            break;
+        case Connection.COMMAND_LUMINANCE:
+            light.setLocally(light.on(), mLum, light.temp(), light.red(), light.green(), light.blue());
+            break;
+        case Connection.COMMAND_TEMP:
+            light.setLocally(light.on(), light.lum(), mTemp, light.red(), light.green(), light.blue());
+            break;
+        default:
+            light.setLocally(light.on(), light.lum(), light.temp(), mR, mG, mB);
+            break;
+        }
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof LightCommand))
+            return false;
+
+        LightCommand c = (LightCommand)o;
+        return mCommand == c.mCommand && mOn == c.mOn && mLum == c.mLum
+            && mTemp == c.mTemp && mR == c.mR && mG == c.mG && mB == c.mB
+            && mTime == c.mTime;
+    }
+
+    public int hashCode()
+    {
+        int h = mCommand;
+        h = h * 31 + (mOn ? 1 : 0);
+        h = h * 31 + mLum;
+        h = h * 31 + mTemp;
+        h = h * 31 + ((mR & 0xff) << 16 | (mG & 0xff) << 8 | (mB & 0xff));
+        h = h * 31 + mTime;
+        return h;
+    }
+
+    public String toString()
+    {
+        switch (mCommand) {
+        case Connection.COMMAND_ONOFF:
+            return "<onoff: " + mOn + ">";
+        case Connection.COMMAND_LUMINANCE:
+            return "<lum: " + mLum + " time: " + mTime + ">";
+        case Connection.COMMAND_TEMP:
+            return "<temp: " + mTemp + " time: " + mTime + ">";
+        default:
+            return "<rgb: " + mR + " " + mG + " " + mB + " time: " + mTime + ">";
+        }
+    }
+}
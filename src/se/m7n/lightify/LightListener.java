@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+/**
+ * Receives the changes found by Connection.updateAllLightStatus. Called
+ * on the connection's reader thread, or event loop, as the records
+ * arrive and after the new state has been stored, so keep it short.
+ **/
+public interface LightListener
+{
+    /** Bits of the changes argument to lightChanged. **/
+    int ONOFF = 1;
+    int LUMINANCE = 2;
+    int TEMPERATURE = 4;
+    int COLOUR = 8;
+    int ONLINE = 16;
+    int NAME = 32;
+
+    default void lightAdded(Light light)
+    {
+    }
+
+    default void lightChanged(Light light, int changes)
+    {
+    }
+
+    default void lightRemoved(Light light)
+    {
+    }
+}
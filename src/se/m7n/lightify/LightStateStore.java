@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+/**
+ * Light state kept column-wise in parallel primitive arrays, one dense
+ * slot per light. Light objects are flyweights over a slot.
+ *
+ * snapshot() shares the current arrays with the caller and the next
+ * write copies them first, so a snapshot never changes and can be read
+ * from any thread without locking. While nothing is written, repeated
+ * snapshots return the same object.
+ **/
+public class LightStateStore
+{
+    /** An immutable view of every slot at one version. **/
+    public static final class Snapshot
+    {
+        private final Columns mCols;
+        private final long mVersion;
+
+        private Snapshot(Columns cols, long version)
+        {
+            mCols = cols;
+            mVersion = version;
+        }
+
+        public long version() { return mVersion; }
+
+        /** Upper bound for slot numbers; check live() for each. **/
+        public int capacity() { return mCols.mAddr.length; }
+
+        public boolean live(int slot) { return mCols.mLive[slot]; }
+        public long address(int slot) { return mCols.mAddr[slot]; }
+        public boolean on(int slot) { return mCols.mOn[slot] != 0; }
+        public byte lum(int slot) { return mCols.mLum[slot]; }
+        public short temp(int slot) { return mCols.mTemp[slot]; }
+        public byte red(int slot) { return mCols.mR[slot]; }
+        public byte green(int slot) { return mCols.mG[slot]; }
+        public byte blue(int slot) { return mCols.mB[slot]; }
+        public byte online(int slot) { return mCols.mOnline[slot]; }
+        public byte type(int slot) { return mCols.mType[slot]; }
+    }
+
+    private static final class Columns
+    {
+        final boolean[] mLive;
+        final long[] mAddr;
+        final byte[] mOn;
+        final byte[] mLum;
+        final short[] mTemp;
+        final byte[] mR;
+        final byte[] mG;
+        final byte[] mB;
+        final byte[] mOnline;
+        final byte[] mType;
+
+        Columns(int capacity)
+        {
+            this(null, capacity);
+        }
+
+        /** Copy of the first slots of src, grown to capacity. **/
+        Columns(Columns src, int capacity)
+        {
+            mLive = new boolean[capacity];
+            mAddr = new long[capacity];
+            mOn = new byte[capacity];
+            mLum = new byte[capacity];
+            mTemp = new short[capacity];
+            mR = new byte[capacity];
+            mG = new byte[capacity];
+            mB = new byte[capacity];
+            mOnline = new byte[capacity];
+            mType = new byte[capacity];
+
+            if (src != null) {
+                int len = Math.min(src.mAddr.length, capacity);
+                System.arraycopy(src.mLive, 0, mLive, 0, len);
+                System.arraycopy(src.mAddr, 0, mAddr, 0, len);
+                System.arraycopy(src.mOn, 0, mOn, 0, len);
+                System.arraycopy(src.mLum, 0, mLum, 0, len);
+                System.arraycopy(src.mTemp, 0, mTemp, 0, len);
+                System.arraycopy(src.mR, 0, mR, 0, len);
+                System.arraycopy(src.mG, 0, mG, 0, len);
+                System.arraycopy(src.mB, 0, mB, 0, len);
+                System.arraycopy(src.mOnline, 0, mOnline, 0, len);
+                System.arraycopy(src.mType, 0, mType, 0, len);
+            }
+        }
+    }
+
+    private volatile Columns mCols;
+    private Snapshot mSnapshot;
+    private long mVersion;
+    private int[] mFree;
+    private int mFreeCount;
+    private int mUsed;
+
+    public LightStateStore()
+    {
+        this(16);
+    }
+
+    public LightStateStore(int capacity)
+    {
+        mCols = new Columns(Math.max(capacity, 1));
+        mFree = new int[4];
+    }
+
+    /** Consistent state of all lights, shared until the next write. **/
+    public synchronized Snapshot snapshot()
+    {
+        if (mSnapshot == null || mSnapshot.mVersion != mVersion)
+            mSnapshot = new Snapshot(mCols, mVersion);
+        return mSnapshot;
+    }
+
+    public synchronized long version()
+    {
+        return mVersion;
+    }
+
+    /** Number of live slots. **/
+    public synchronized int size()
+    {
+        return mUsed - mFreeCount;
+    }
+
+    public synchronized int allocate(long addr)
+    {
+        int slot;
+
+        if (mFreeCount > 0) {
+            mFreeCount = mFreeCount - 1;
+            slot = mFree[mFreeCount];
+        } else {
+            slot = mUsed;
+            mUsed = mUsed + 1;
+        }
+
+        Columns cols = writable(slot + 1);
+        cols.mLive[slot] = true;
+        cols.mAddr[slot] = addr;
+        cols.mOn[slot] = 0;
+        cols.mLum[slot] = 0;
+        cols.mTemp[slot] = 0;
+        cols.mR[slot] = 0;
+        cols.mG[slot] = 0;
+        cols.mB[slot] = 0;
+        cols.mOnline[slot] = 0;
+        cols.mType[slot] = 0;
+        return slot;
+    }
+
+    public synchronized void free(int slot)
+    {
+        writable(0).mLive[slot] = false;
+
+        if (mFreeCount == mFree.length) {
+            int[] free = new int[mFree.length * 2];
+            System.arraycopy(mFree, 0, free, 0, mFreeCount);
+            mFree = free;
+        }
+        mFree[mFreeCount] = slot;
+        mFreeCount = mFreeCount + 1;
+    }
+
+    /** A single slot store holding a copy of slot, for a light dropped from the registry. **/
+    synchronized LightStateStore copyOf(int slot)
+    {
+        Columns cols = mCols;
+        LightStateStore res = new LightStateStore(1);
+
+        res.allocate(cols.mAddr[slot]);
+        res.set(0, cols.mOn[slot] != 0, cols.mLum[slot], cols.mTemp[slot],
+                cols.mR[slot], cols.mG[slot], cols.mB[slot]);
+        res.setOnline(0, cols.mOnline[slot]);
+        res.setType(0, cols.mType[slot]);
+        return res;
+    }
+
+    // Live reads, not synchronized with writers; use snapshot() for a consistent view
+    public long address(int slot) { return mCols.mAddr[slot]; }
+    public boolean on(int slot) { return mCols.mOn[slot] != 0; }
+    public byte lum(int slot) { return mCols.mLum[slot]; }
+    public short temp(int slot) { return mCols.mTemp[slot]; }
+    public byte red(int slot) { return mCols.mR[slot]; }
+    public byte green(int slot) { return mCols.mG[slot]; }
+    public byte blue(int slot) { return mCols.mB[slot]; }
+    public byte online(int slot) { return mCols.mOnline[slot]; }
+    public byte type(int slot) { return mCols.mType[slot]; }
+
+    public synchronized void set(int slot, boolean on, byte lum, short temp, byte r, byte g, byte b)
+    {
+        Columns cols = writable(0);
+        cols.mOn[slot] = (byte)(on ? 1 : 0);
+        cols.mLum[slot] = lum;
+        cols.mTemp[slot] = temp;
+        cols.mR[slot] = r;
+        cols.mG[slot] = g;
+        cols.mB[slot] = b;
+    }
+
+    public synchronized void setOn(int slot, boolean on)
+    {
+        writable(0).mOn[slot] = (byte)(on ? 1 : 0);
+    }
+
+    public synchronized void setLum(int slot, byte lum)
+    {
+        writable(0).mLum[slot] = lum;
+    }
+
+    public synchronized void setTemp(int slot, short temp)
+    {
+        writable(0).mTemp[slot] = temp;
+    }
+
+    public synchronized void setRgb(int slot, byte r, byte g, byte b)
+    {
+        Columns cols = writable(0);
+        cols.mR[slot] = r;
+        cols.mG[slot] = g;
+        cols.mB[slot] = b;
+    }
+
+    public synchronized void setOnline(int slot, byte online)
+    {
+        writable(0).mOnline[slot] = online;
+    }
+
+    public synchronized void setType(int slot, byte type)
+    {
+        writable(0).mType[slot] = type;
+    }
+
+    /**
+     * Columns that may be written in place, with room for at least
+     * capacity slots. Copies them first if a snapshot still shares them.
+     **/
+    private Columns writable(int capacity)
+    {
+        Columns cols = mCols;
+        boolean shared = mSnapshot != null && mSnapshot.mCols == cols;
+
+        if (shared || capacity > cols.mAddr.length) {
+            int size = cols.mAddr.length;
+            while (size < capacity) {
+                size = size * 2;
+            }
+            cols = new Columns(cols, size);
+            mCols = cols;
+            mSnapshot = null;
+        }
+        mVersion = mVersion + 1;
+        return cols;
+    }
+}
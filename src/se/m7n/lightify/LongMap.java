@@ -0,0 +1,215 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open addressing hash map from primitive long keys to objects, using
+ * linear probing and backward shift deletion. Lookups do not box the
+ * key and allocate nothing. Values may not be null. Not thread-safe.
+ **/
+public class LongMap<V>
+{
+    private long[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+    private int mMask;
+
+    public LongMap()
+    {
+        this(16);
+    }
+
+    public LongMap(int expected)
+    {
+        int capacity = 4;
+        while (capacity < expected * 2) {
+            capacity = capacity * 2;
+        }
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+    }
+
+    /** Copy of src, for publishing a changed map to other threads. **/
+    public LongMap(LongMap<V> src)
+    {
+        mKeys = src.mKeys.clone();
+        mValues = src.mValues.clone();
+        mSize = src.mSize;
+        mMask = src.mMask;
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int i = slot(key);
+        Object value;
+
+        while ((value = mValues[i]) != null) {
+            if (mKeys[i] == key)
+                return (V)value;
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    /** Insert or replace, returning the previous value or null. **/
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("LongMap values may not be null");
+
+        int i = slot(key);
+        Object old;
+
+        while ((old = mValues[i]) != null) {
+            if (mKeys[i] == key) {
+                mValues[i] = value;
+                return (V)old;
+            }
+            i = (i + 1) & mMask;
+        }
+
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize = mSize + 1;
+        if (mSize * 2 > mValues.length)
+            resize(mValues.length * 2);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        int i = slot(key);
+        Object old;
+
+        while ((old = mValues[i]) != null) {
+            if (mKeys[i] == key) {
+                shiftBack(i);
+                mSize = mSize - 1;
+                return (V)old;
+            }
+            i = (i + 1) & mMask;
+        }
+        return null;
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /** Values in table order. The map may not be modified while iterating. **/
+    public Iterable<V> values()
+    {
+        return () -> new Iterator<V>() {
+            private int mNext = advance(0);
+
+            private int advance(int i)
+            {
+                while (i < mValues.length && mValues[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext()
+            {
+                return mNext < mValues.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public V next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                V value = (V)mValues[mNext];
+                mNext = advance(mNext + 1);
+                return value;
+            }
+        };
+    }
+
+    private int slot(long key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32)) & mMask;
+    }
+
+    /** Close the gap left at i by moving later entries of the probe run back. **/
+    private void shiftBack(int i)
+    {
+        int j = i;
+
+        while (true) {
+            j = (j + 1) & mMask;
+            if (mValues[j] == null)
+                break;
+
+            int home = slot(mKeys[j]);
+            // Move j into the gap unless its home lies cyclically in (i, j]
+            boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stay) {
+                mKeys[i] = mKeys[j];
+                mValues[i] = mValues[j];
+                i = j;
+            }
+        }
+        mValues[i] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity)
+    {
+        long[] keys = mKeys;
+        Object[] values = mValues;
+
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mMask = capacity - 1;
+        mSize = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null)
+                put(keys[i], (V)values[i]);
+        }
+    }
+}
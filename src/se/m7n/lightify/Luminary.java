@@ -18,10 +18,12 @@ package se.m7n.lightify;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 abstract public class Luminary
 {
-    private String mName;
+    // Renamed by the refresh thread while others read it
+    private volatile String mName;
     private Connection mConn;
 
     public Luminary(Connection conn, String name)
@@ -34,37 +36,101 @@ abstract public class Luminary
         return mName;
     }
 
+    void setName(String name)
+    {
+        mName = name;
+    }
+
     public void setOnOff(boolean on)
         throws IOException
     {
-        ByteBuffer data = mConn.buildOnOff(this, on);
-        mConn.send(data);
-        mConn.recv();
+        Connection.await(setOnOffAsync(on));
+    }
+
+    public CompletableFuture<ByteBuffer> setOnOffAsync(boolean on)
+    {
+        Coalescer coalescer = mConn.coalescer();
+        if (coalescer != null)
+            return coalescer.setOnOff(this, on);
+
+        ByteBuffer data = mConn.framePool().acquire();
+        try {
+            mConn.encodeOnOff(data, this, on);
+            data.flip();
+            return mConn.sendAsync(data);
+        } finally {
+            mConn.framePool().release(data);
+        }
     }
 
     public void setLuminance(byte lum, short time)
         throws IOException
     {
-        ByteBuffer data = mConn.buildLuminance(this, lum, time);
-        mConn.send(data);
-        mConn.recv();
+        Connection.await(setLuminanceAsync(lum, time));
+    }
+
+    public CompletableFuture<ByteBuffer> setLuminanceAsync(byte lum, short time)
+    {
+        Coalescer coalescer = mConn.coalescer();
+        if (coalescer != null)
+            return coalescer.setLuminance(this, lum, time);
+
+        ByteBuffer data = mConn.framePool().acquire();
+        try {
+            mConn.encodeLuminance(data, this, lum, time);
+            data.flip();
+            return mConn.sendAsync(data);
+        } finally {
+            mConn.framePool().release(data);
+        }
     }
 
     public void setTemperature(short temp, short time)
         throws IOException
     {
-        ByteBuffer data = mConn.buildTemp(this, temp, time);
-        mConn.send(data);
-        mConn.recv();
+        Connection.await(setTemperatureAsync(temp, time));
+    }
+
+    public CompletableFuture<ByteBuffer> setTemperatureAsync(short temp, short time)
+    {
+        Coalescer coalescer = mConn.coalescer();
+        if (coalescer != null)
+            return coalescer.setTemperature(this, temp, time);
+
+        ByteBuffer data = mConn.framePool().acquire();
+        try {
+            mConn.encodeTemp(data, this, temp, time);
+            data.flip();
+            return mConn.sendAsync(data);
+        } finally {
+            mConn.framePool().release(data);
+        }
     }
 
     public void setRgb(byte r, byte g, byte b, short time)
         throws IOException
     {
-        ByteBuffer data = mConn.buildColor(this, r, g, b, time);
-        mConn.send(data);
-        mConn.recv();
+        Connection.await(setRgbAsync(r, g, b, time));
+    }
+
+    public CompletableFuture<ByteBuffer> setRgbAsync(byte r, byte g, byte b, short time)
+    {
+        Coalescer coalescer = mConn.coalescer();
+        if (coalescer != null)
+            return coalescer.setRgb(this, r, g, b, time);
+
+        ByteBuffer data = mConn.framePool().acquire();
+        try {
+            mConn.encodeColor(data, this, r, g, b, time);
+            data.flip();
+            return mConn.sendAsync(data);
+        } finally {
+            mConn.framePool().release(data);
+        }
     }
 
     abstract public ByteBuffer buildCommand(byte command, byte[] data);
+
+    /** Append the frame header addressing this luminary, see Connection.encode*. **/
+    abstract public void encodeCommand(ByteBuffer dst, byte command, int dataLength);
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Index of Luminary names for exact, case-insensitive and prefix lookup,
+ * each in time proportional to the length of the name plus the number
+ * of matches. It is a trie over lower cased characters whose nodes
+ * never change once published: add and remove copy the path to the
+ * node they touch and swap in a new root, so lookups take no lock and
+ * always see a consistent index. Several items may share a name.
+ **/
+public class NameIndex<T extends Luminary>
+{
+    private static final Object[] NONE = new Object[0];
+    private static final String[] NO_NAMES = new String[0];
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /** Immutable trie node; names and items end here, children branch off by folded character. **/
+    private static final class Node
+    {
+        final char[] mKeys;
+        final Node[] mChildren;
+        final String[] mNames;
+        final Object[] mItems;
+
+        Node(char[] keys, Node[] children, String[] names, Object[] items)
+        {
+            mKeys = keys;
+            mChildren = children;
+            mNames = names;
+            mItems = items;
+        }
+
+        Node child(char key)
+        {
+            int i = Arrays.binarySearch(mKeys, key);
+            return i >= 0 ? mChildren[i] : null;
+        }
+
+        boolean isEmpty()
+        {
+            return mKeys.length == 0 && mItems.length == 0;
+        }
+    }
+
+    private static final Node EMPTY = new Node(NO_KEYS, NO_CHILDREN, NO_NAMES, NONE);
+
+    private volatile Node mRoot;
+    private volatile int mSize;
+
+    public NameIndex()
+    {
+        mRoot = EMPTY;
+    }
+
+    static char fold(char c)
+    {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    public int size()
+    {
+        return mSize;
+    }
+
+    public synchronized void add(String name, T item)
+    {
+        mRoot = add(mRoot, name, 0, item);
+        mSize++;
+    }
+
+    private static Node add(Node node, String name, int depth, Object item)
+    {
+        if (depth == name.length()) {
+            String[] names = Arrays.copyOf(node.mNames, node.mNames.length + 1);
+            Object[] items = Arrays.copyOf(node.mItems, node.mItems.length + 1);
+            names[names.length - 1] = name;
+            items[items.length - 1] = item;
+            return new Node(node.mKeys, node.mChildren, names, items);
+        }
+
+        char key = fold(name.charAt(depth));
+        int i = Arrays.binarySearch(node.mKeys, key);
+        if (i >= 0) {
+            Node[] children = node.mChildren.clone();
+            children[i] = add(children[i], name, depth + 1, item);
+            return new Node(node.mKeys, children, node.mNames, node.mItems);
+        }
+
+        i = -i - 1;
+        char[] keys = new char[node.mKeys.length + 1];
+        Node[] children = new Node[keys.length];
+        System.arraycopy(node.mKeys, 0, keys, 0, i);
+        System.arraycopy(node.mChildren, 0, children, 0, i);
+        keys[i] = key;
+        children[i] = add(EMPTY, name, depth + 1, item);
+        System.arraycopy(node.mKeys, i, keys, i + 1, node.mKeys.length - i);
+        System.arraycopy(node.mChildren, i, children, i + 1, node.mKeys.length - i);
+        return new Node(keys, children, node.mNames, node.mItems);
+    }
+
+    /** Remove item, indexed under name. Returns whether it was there. **/
+    public synchronized boolean remove(String name, T item)
+    {
+        Node root = remove(mRoot, name, 0, item);
+        if (root == mRoot)
+            return false;
+
+        mRoot = root != null ? root : EMPTY;
+        mSize--;
+        return true;
+    }
+
+    // Returns node itself if item is not found, null once a node becomes empty
+    private static Node remove(Node node, String name, int depth, Object item)
+    {
+        if (depth == name.length()) {
+            for (int i = 0; i < node.mItems.length; i++) {
+                if (node.mItems[i] == item && node.mNames[i].equals(name)) {
+                    if (node.mItems.length == 1 && node.mKeys.length == 0)
+                        return null;
+                    return new Node(node.mKeys, node.mChildren,
+                                    without(node.mNames, i, NO_NAMES), without(node.mItems, i, NONE));
+                }
+            }
+            return node;
+        }
+
+        int i = Arrays.binarySearch(node.mKeys, fold(name.charAt(depth)));
+        if (i < 0)
+            return node;
+
+        Node child = remove(node.mChildren[i], name, depth + 1, item);
+        if (child == node.mChildren[i])
+            return node;
+        if (child != null) {
+            Node[] children = node.mChildren.clone();
+            children[i] = child;
+            return new Node(node.mKeys, children, node.mNames, node.mItems);
+        }
+        if (node.mKeys.length == 1 && node.mItems.length == 0)
+            return null;
+
+        char[] keys = new char[node.mKeys.length - 1];
+        System.arraycopy(node.mKeys, 0, keys, 0, i);
+        System.arraycopy(node.mKeys, i + 1, keys, i, keys.length - i);
+        return new Node(keys, without(node.mChildren, i, NO_CHILDREN), node.mNames, node.mItems);
+    }
+
+    private static <E> E[] without(E[] array, int index, E[] empty)
+    {
+        if (array.length == 1)
+            return empty;
+
+        E[] res = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, index + 1, res, index, res.length - index);
+        return res;
+    }
+
+    /** Move item from oldName to newName; readers see it under one name or the other. **/
+    public synchronized void rename(String oldName, String newName, T item)
+    {
+        Node root = remove(mRoot, oldName, 0, item);
+        if (root == mRoot)
+            mSize++;
+        mRoot = add(root != null ? root : EMPTY, newName, 0, item);
+    }
+
+    /** Removals and additions applied by NameIndex.apply as one change. **/
+    public static final class Batch<T extends Luminary>
+    {
+        private ArrayList<String> mRemovedNames = new ArrayList<String>();
+        private ArrayList<T> mRemoved = new ArrayList<T>();
+        private ArrayList<String> mAddedNames = new ArrayList<String>();
+        private ArrayList<T> mAdded = new ArrayList<T>();
+
+        public Batch<T> remove(String name, T item)
+        {
+            mRemovedNames.add(name);
+            mRemoved.add(item);
+            return this;
+        }
+
+        public Batch<T> add(String name, T item)
+        {
+            mAddedNames.add(name);
+            mAdded.add(item);
+            return this;
+        }
+
+        public boolean isEmpty()
+        {
+            return mRemoved.isEmpty() && mAdded.isEmpty();
+        }
+    }
+
+    /** Apply the removals, then the additions of batch, publishing one new root. **/
+    public synchronized void apply(Batch<T> batch)
+    {
+        Node root = mRoot;
+        int size = mSize;
+
+        for (int i = 0; i < batch.mRemoved.size(); i++) {
+            Node res = remove(root, batch.mRemovedNames.get(i), 0, batch.mRemoved.get(i));
+            if (res != root) {
+                root = res != null ? res : EMPTY;
+                size--;
+            }
+        }
+        for (int i = 0; i < batch.mAdded.size(); i++) {
+            root = add(root, batch.mAddedNames.get(i), 0, batch.mAdded.get(i));
+            size++;
+        }
+
+        mRoot = root;
+        mSize = size;
+    }
+
+    public synchronized void clear()
+    {
+        mRoot = EMPTY;
+        mSize = 0;
+    }
+
+    private Node find(String name)
+    {
+        Node node = mRoot;
+        for (int i = 0; i < name.length() && node != null; i++) {
+            node = node.child(fold(name.charAt(i)));
+        }
+        return node;
+    }
+
+    /** The item named exactly name, or null. The first one added wins if several are. **/
+    @SuppressWarnings("unchecked")
+    public T get(String name)
+    {
+        Node node = find(name);
+        if (node == null)
+            return null;
+
+        for (int i = 0; i < node.mNames.length; i++) {
+            if (node.mNames[i].equals(name))
+                return (T)node.mItems[i];
+        }
+        return null;
+    }
+
+    /** Items whose name equals name ignoring case. **/
+    public List<T> getIgnoreCase(String name)
+    {
+        ArrayList<T> res = new ArrayList<T>();
+        Node node = find(name);
+        if (node != null)
+            collect(node, res, false);
+        return res;
+    }
+
+    /** Items whose name starts with prefix, ignoring case, in order of their folded names. **/
+    public List<T> startingWith(String prefix)
+    {
+        ArrayList<T> res = new ArrayList<T>();
+        Node node = find(prefix);
+        if (node != null)
+            collect(node, res, true);
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void collect(Node node, List<T> res, boolean deep)
+    {
+        for (Object item : node.mItems) {
+            res.add((T)item);
+        }
+        if (!deep)
+            return;
+        for (Node child : node.mChildren) {
+            collect(child, res, true);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking socket driven by an EventLoop. Writes go straight to the
+ * channel when it can take them and are queued for the loop otherwise;
+ * reads are split into frames by the same FrameReader as SocketTransport.
+ * The write state is guarded by a ReentrantLock rather than a monitor,
+ * so a virtual thread writing a frame does not pin its carrier.
+ **/
+class NioTransport extends Transport implements EventLoop.Handler
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private EventLoop mLoop;
+    private SocketChannel mChannel;
+    private CompletableFuture<Void> mConnected;
+    private SelectionKey mKey;
+    private ByteBuffer mIn;
+    private FrameReader mReader;
+    private ByteBuffer mOut;
+    private boolean mClosed;
+    private ReentrantLock mLock;
+
+    NioTransport(Connection conn, EventLoop loop, InetAddress host, int port) throws IOException
+    {
+        super(conn);
+        mLock = new ReentrantLock();
+        mLoop = loop;
+        mConnected = new CompletableFuture<Void>();
+        mIn = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        mReader = new FrameReader(conn);
+        mOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        mChannel.connect(new InetSocketAddress(host, port));
+        mLoop.register(mChannel, SelectionKey.OP_CONNECT, this);
+
+        try {
+            Connection.await(mConnected, Connection.CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    void write(ByteBuffer frame) throws IOException
+    {
+        int pos = frame.position();
+
+        mLock.lock();
+        try {
+            if (mClosed)
+                throw new IOException("Connection closed");
+
+            if (mOut.position() == 0) {
+                mChannel.write(frame);
+                if (!frame.hasRemaining())
+                    return;
+            }
+
+            if (mOut.remaining() < frame.remaining())
+                mOut = grow(mOut, frame.remaining());
+            mOut.put(frame);
+            mKey.interestOpsOr(SelectionKey.OP_WRITE);
+        } finally {
+            mLock.unlock();
+            frame.position(pos);
+        }
+        mLoop.wakeup();
+    }
+
+    boolean blocks()
+    {
+        return false;
+    }
+
+    void close() throws IOException
+    {
+        mLock.lock();
+        try {
+            mClosed = true;
+        } finally {
+            mLock.unlock();
+        }
+        mChannel.close();
+    }
+
+    public void ready(SelectionKey key) throws IOException
+    {
+        if (key.isConnectable()) {
+            mChannel.finishConnect();
+            mLock.lock();
+            try {
+                mKey = key;
+                key.interestOps(SelectionKey.OP_READ);
+            } finally {
+                mLock.unlock();
+            }
+            mConnected.complete(null);
+        }
+
+        if (key.isValid() && key.isWritable())
+            flush();
+
+        if (key.isValid() && key.isReadable())
+            read();
+    }
+
+    public void failed(IOException e)
+    {
+        boolean closed;
+        mLock.lock();
+        try {
+            closed = mClosed;
+            mClosed = true;
+        } finally {
+            mLock.unlock();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException ignore) {
+        }
+
+        if (!mConnected.completeExceptionally(e) && !closed)
+            mConn.transportFailed(this, e);
+    }
+
+    private void flush() throws IOException
+    {
+        mLock.lock();
+        try {
+            mOut.flip();
+            mChannel.write(mOut);
+            mOut.compact();
+
+            if (mOut.position() == 0)
+                mKey.interestOps(SelectionKey.OP_READ);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void read() throws IOException
+    {
+        int res = mChannel.read(mIn);
+
+        if (res == -1)
+            throw new EOFException("Connection closed by gateway");
+
+        mIn.flip();
+        mReader.feed(mIn);
+        mIn.clear();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int extra)
+    {
+        int size = buf.capacity();
+        while (size - buf.position() < extra) {
+            size = size * 2;
+        }
+
+        ByteBuffer res = ByteBuffer.allocateDirect(size);
+        res.order(buf.order());
+        buf.flip();
+        res.put(buf);
+        return res;
+    }
+}
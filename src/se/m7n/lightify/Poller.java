@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background refresh of all light status. The interval drops to the
+ * minimum whenever a poll finds changes and doubles up to the maximum
+ * after each poll that finds none. A poll that comes due while other
+ * requests are in flight, or coalesced commands are waiting, is put
+ * off by the minimum interval so it never competes with them. Each
+ * delay is jittered by a quarter, so pollers for several gateways
+ * drift apart instead of polling in step.
+ *
+ * A poll that fails is not taken for one that found no changes: the
+ * interval is kept, and retries back off from the minimum up to the
+ * maximum until a poll succeeds again. The poller stops by itself once
+ * the connection is closed.
+ *
+ * Changes are reported through the connection's LightListeners.
+ **/
+public class Poller implements Closeable
+{
+    private static ScheduledExecutorService sScheduler;
+
+    private Connection mConn;
+    private ScheduledExecutorService mScheduler;
+    private long mMin;
+    private long mMax;
+    private long mInterval;
+    // Delay before retrying a failed poll, and the error of the last poll
+    private long mRetry;
+    private Throwable mError;
+    private ScheduledFuture<?> mNext;
+    private boolean mClosed;
+
+    /** Poll conn every minInterval to maxInterval milliseconds. **/
+    public Poller(Connection conn, long minInterval, long maxInterval)
+    {
+        this(conn, minInterval, maxInterval, scheduler());
+    }
+
+    public Poller(Connection conn, long minInterval, long maxInterval,
+                  ScheduledExecutorService scheduler)
+    {
+        if (minInterval <= 0 || maxInterval < minInterval)
+            throw new IllegalArgumentException("Bad poll interval: " + minInterval + "-" + maxInterval);
+
+        mConn = conn;
+        mScheduler = scheduler;
+        mMin = minInterval;
+        mMax = maxInterval;
+        mInterval = minInterval;
+        mRetry = minInterval;
+
+        // Start anywhere in the first interval
+        synchronized (this) {
+            mNext = mScheduler.schedule(() -> poll(),
+                                        ThreadLocalRandom.current().nextLong(minInterval),
+                                        TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService scheduler()
+    {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "lightify-poller");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+        return sScheduler;
+    }
+
+    /** Current delay between polls in milliseconds, before jitter. **/
+    public synchronized long interval()
+    {
+        return mInterval;
+    }
+
+    /** Error of the last poll, or null if it succeeded. **/
+    public synchronized Throwable lastError()
+    {
+        return mError;
+    }
+
+    /** True once closed, by close() or because the connection was. **/
+    public synchronized boolean isClosed()
+    {
+        return mClosed;
+    }
+
+    public synchronized void close()
+    {
+        mClosed = true;
+        if (mNext != null)
+            mNext.cancel(false);
+    }
+
+    private void poll()
+    {
+        if (mConn.isClosed()) {
+            close();
+            return;
+        }
+
+        Coalescer coalescer = mConn.coalescer();
+
+        if (mConn.inFlight() > 0 || (coalescer != null && coalescer.pending() > 0)) {
+            schedule(mMin);
+            return;
+        }
+
+        mConn.updateAllLightStatusAsync().whenComplete((changed, e) -> {
+                if (e != null && mConn.isClosed()) {
+                    close();
+                    return;
+                }
+
+                synchronized (this) {
+                    mError = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (e != null) {
+                        // Not the same as no changes; retry without growing the interval
+                        schedule(mRetry);
+                        mRetry = Math.min(mRetry * 2, mMax);
+                        return;
+                    }
+
+                    mRetry = mMin;
+                    if (changed > 0)
+                        mInterval = mMin;
+                    else
+                        mInterval = Math.min(mInterval * 2, mMax);
+                    schedule(mInterval);
+                }
+            });
+    }
+
+    private synchronized void schedule(long delay)
+    {
+        if (mClosed)
+            return;
+
+        long jitter = delay / 4;
+        if (jitter > 0)
+            delay = delay + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+        mNext = mScheduler.schedule(() -> poll(), delay, TimeUnit.MILLISECONDS);
+    }
+}
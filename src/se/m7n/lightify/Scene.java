@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A batch of setter commands applied with Connection.apply(Scene). All
+ * frames are encoded back to back into one buffer, which the scene
+ * keeps for the next time it is applied, and written at once. A scene
+ * should not be applied from two threads at the same time.
+ **/
+public class Scene
+{
+    /**
+     * Outcome of each item of an applied scene, by index. An item failed
+     * if it got no response or the gateway answered with a nonzero
+     * status byte.
+     **/
+    public static final class Result
+    {
+        private final Scene mScene;
+        private final byte[] mStatus;
+        private final Throwable[] mFailures;
+        private int mFailed;
+
+        Result(Scene scene, List<CompletableFuture<ByteBuffer>> sent)
+        {
+            mScene = scene;
+            mStatus = new byte[sent.size()];
+            mFailures = new Throwable[sent.size()];
+
+            for (int i = 0; i < mStatus.length; i++) {
+                try {
+                    // Format: <H2BIB
+                    mStatus[i] = sent.get(i).join().get(8);
+                    if (mStatus[i] != 0)
+                        mFailures[i] = new IOException("Gateway rejected " + scene.mCommands.get(i)
+                                                       + " to " + scene.mItems.get(i)
+                                                       + ", status " + (mStatus[i] & 0xff));
+                } catch (CompletionException e) {
+                    mFailures[i] = e.getCause() != null ? e.getCause() : e;
+                }
+                if (mFailures[i] != null)
+                    mFailed = mFailed + 1;
+            }
+        }
+
+        public int size() { return mStatus.length; }
+        public int failures() { return mFailed; }
+        public Luminary item(int i) { return mScene.mItems.get(i); }
+        public LightCommand command(int i) { return mScene.mCommands.get(i); }
+        public boolean succeeded(int i) { return mFailures[i] == null; }
+        /** Why item i failed, or null if it succeeded. **/
+        public Throwable failure(int i) { return mFailures[i]; }
+        /** Status byte of the response to item i, 0 if none arrived. **/
+        public byte status(int i) { return mStatus[i]; }
+    }
+
+    private ArrayList<Luminary> mItems;
+    private ArrayList<LightCommand> mCommands;
+    private ByteBuffer mFrames;
+
+    public Scene()
+    {
+        mItems = new ArrayList<Luminary>();
+        mCommands = new ArrayList<LightCommand>();
+    }
+
+    public Scene add(Luminary item, LightCommand command)
+    {
+        mItems.add(item);
+        mCommands.add(command);
+        return this;
+    }
+
+    public Scene setOnOff(Luminary item, boolean on)
+    {
+        return add(item, LightCommand.onOff(on));
+    }
+
+    public Scene setLuminance(Luminary item, byte lum, short time)
+    {
+        return add(item, LightCommand.luminance(lum, time));
+    }
+
+    public Scene setTemperature(Luminary item, short temp, short time)
+    {
+        return add(item, LightCommand.temperature(temp, time));
+    }
+
+    public Scene setRgb(Luminary item, byte r, byte g, byte b, short time)
+    {
+        return add(item, LightCommand.colour(r, g, b, time));
+    }
+
+    public int size()
+    {
+        return mItems.size();
+    }
+
+    /** Encode every item for conn, flipped and ready to write. **/
+    ByteBuffer encode(Connection conn)
+    {
+        int size = mItems.size() * FramePool.FRAME_SIZE;
+
+        if (mFrames == null || mFrames.capacity() < size) {
+            mFrames = ByteBuffer.allocate(size);
+            mFrames.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        mFrames.clear();
+        for (int i = 0; i < mItems.size(); i++) {
+            mCommands.get(i).encode(conn, mFrames, mItems.get(i));
+        }
+        mFrames.flip();
+        return mFrames;
+    }
+
+    /** Record the commanded state on the lights of the scene. **/
+    void applyLocally()
+    {
+        for (int i = 0; i < mItems.size(); i++) {
+            if (mItems.get(i) instanceof Light)
+                mCommands.get(i).applyLocally((Light)mItems.get(i));
+        }
+    }
+}
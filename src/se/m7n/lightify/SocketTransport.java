@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/** Blocking socket with a dedicated reader thread. **/
+class SocketTransport extends Transport
+{
+    private static final int BUFFER_SIZE = 4096;
+
+    private Logger mLogger;
+    private Socket mSock;
+    private OutputStream mOs;
+    private InputStream mIs;
+    private Thread mReader;
+    private byte[] mScratch;
+    private volatile boolean mClosed;
+
+    SocketTransport(Connection conn, InetAddress host, int port) throws IOException
+    {
+        super(conn);
+        mLogger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+        mSock = new Socket();
+        mSock.setTcpNoDelay(true);
+        try {
+            mSock.connect(new InetSocketAddress(host, port), Connection.CONNECT_TIMEOUT);
+        } catch (SocketTimeoutException e) {
+            mSock.close();
+            throw new GatewayTimeoutException("Connecting to " + host.getHostAddress(), e);
+        } catch (IOException e) {
+            mSock.close();
+            throw e;
+        }
+        mIs = mSock.getInputStream();
+        mOs = mSock.getOutputStream();
+        mScratch = new byte[FramePool.FRAME_SIZE];
+
+        mReader = new Thread(() -> readLoop(),
+                             "lightify-reader-" + host.getHostAddress());
+        mReader.setDaemon(true);
+        mReader.start();
+    }
+
+    void write(ByteBuffer frame) throws IOException
+    {
+        if (frame.hasArray()) {
+            mOs.write(frame.array(), frame.arrayOffset() + frame.position(),
+                      frame.remaining());
+            return;
+        }
+
+        // Direct buffer, copy through the scratch array
+        int pos = frame.position();
+        try {
+            while (frame.hasRemaining()) {
+                int len = Math.min(frame.remaining(), mScratch.length);
+                frame.get(mScratch, 0, len);
+                mOs.write(mScratch, 0, len);
+            }
+        } finally {
+            frame.position(pos);
+        }
+    }
+
+    boolean blocks()
+    {
+        return true;
+    }
+
+    void close() throws IOException
+    {
+        mClosed = true;
+        mSock.close();
+    }
+
+    private void readLoop()
+    {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        FrameReader reader = new FrameReader(mConn);
+
+        try {
+            while (!mClosed) {
+                int res = mIs.read(in.array());
+
+                if (res == -1)
+                    throw new EOFException("Connection closed by gateway");
+
+                in.position(0);
+                in.limit(res);
+                reader.feed(in);
+            }
+        } catch (IOException e) {
+            if (!mClosed)
+                mLogger.warning("reader: " + e);
+            mConn.transportFailed(this, e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight over one 42 byte light record of a COMMAND_ALL_LIGHT_STATUS
+ * response. The same cursor is moved from record to record, so copy out
+ * anything that must outlive the callback it was handed to. The name is
+ * only decoded when asked for.
+ **/
+public final class StatusCursor
+{
+    // Format: <HQ2B3xB2x2BH4B16s
+    public static final int RECORD_SIZE = 42;
+
+    private ByteBuffer mBuf;
+    private int mPos;
+    private String mName;
+
+    void wrap(ByteBuffer buf, int pos)
+    {
+        mBuf = buf;
+        mPos = pos;
+        mName = null;
+    }
+
+    /** Buffer holding the record, little-endian. **/
+    public ByteBuffer buffer() { return mBuf; }
+    /** Offset of the record in buffer(). **/
+    public int offset() { return mPos; }
+
+    public int index() { return mBuf.getShort(mPos) & 0xffff; }
+    public long address() { return mBuf.getLong(mPos + 2); }
+    public byte type() { return mBuf.get(mPos + 10); }
+    public byte online() { return mBuf.get(mPos + 15); }
+    public boolean on() { return mBuf.get(mPos + 18) != 0; }
+    public byte lum() { return mBuf.get(mPos + 19); }
+    public short temp() { return mBuf.getShort(mPos + 20); }
+    public byte red() { return mBuf.get(mPos + 22); }
+    public byte green() { return mBuf.get(mPos + 23); }
+    public byte blue() { return mBuf.get(mPos + 24); }
+    public byte alpha() { return mBuf.get(mPos + 25); }
+
+    public String name()
+    {
+        if (mName == null) {
+            byte[] raw = new byte[16];
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] = mBuf.get(mPos + 26 + i);
+            }
+            mName = new String(raw, StandardCharsets.US_ASCII).trim();
+        }
+        return mName;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental decoder for COMMAND_ALL_LIGHT_STATUS responses. Fed the
+ * frame in chunks of any size, it hands a StatusCursor to its Handler
+ * as soon as each 42 byte record is complete. Nothing is allocated per
+ * record, and at most one record is buffered.
+ **/
+public class StatusDecoder implements FrameStream
+{
+    public interface Handler
+    {
+        void record(StatusCursor status);
+
+        /** The whole response has been decoded. **/
+        default void end(int count)
+        {
+        }
+    }
+
+    // Format: <H2BIBH
+    private static final int HEADER_SIZE = 11;
+
+    private Handler mHandler;
+    private ByteBuffer mHeader;
+    private ByteBuffer mRecord;
+    private StatusCursor mCursor;
+    private int mCount;
+    private int mSeen;
+
+    public StatusDecoder(Handler handler)
+    {
+        mHandler = handler;
+        mHeader = ByteBuffer.allocate(HEADER_SIZE);
+        mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        mRecord = ByteBuffer.allocate(StatusCursor.RECORD_SIZE);
+        mRecord.order(ByteOrder.LITTLE_ENDIAN);
+        mCursor = new StatusCursor();
+    }
+
+    /** Number of records announced in the header. **/
+    public int count()
+    {
+        return mCount;
+    }
+
+    public void feed(ByteBuffer chunk)
+    {
+        while (chunk.hasRemaining()) {
+            if (mHeader.hasRemaining()) {
+                FrameReader.transfer(chunk, mHeader);
+                if (!mHeader.hasRemaining())
+                    mCount = mHeader.getShort(9) & 0xffff;
+                continue;
+            }
+
+            if (mSeen == mCount) {
+                // Trailing bytes after the last record
+                chunk.position(chunk.limit());
+                return;
+            }
+
+            FrameReader.transfer(chunk, mRecord);
+            if (!mRecord.hasRemaining()) {
+                mCursor.wrap(mRecord, 0);
+                mHandler.record(mCursor);
+                mRecord.clear();
+                mSeen = mSeen + 1;
+            }
+        }
+    }
+
+    public void end()
+    {
+        int seen = mSeen;
+        reset();
+        mHandler.end(seen);
+    }
+
+    /** Prepare for decoding another response. **/
+    public void reset()
+    {
+        mHeader.clear();
+        mRecord.clear();
+        mCount = 0;
+        mSeen = 0;
+    }
+}
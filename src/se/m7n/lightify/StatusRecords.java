@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The last 42 byte status record seen for each light slot, so a refresh
+ * can skip records that did not change. A slot is invalidated when its
+ * state is changed locally, forcing the next record to be decoded.
+ **/
+class StatusRecords
+{
+    static final int RECORD_SIZE = StatusCursor.RECORD_SIZE;
+
+    private byte[] mRecords;
+    private boolean[] mValid;
+
+    StatusRecords()
+    {
+        mRecords = new byte[16 * RECORD_SIZE];
+        mValid = new boolean[16];
+    }
+
+    synchronized boolean matches(int slot, ByteBuffer data, int pos)
+    {
+        if (slot >= mValid.length || !mValid[slot])
+            return false;
+
+        int off = data.arrayOffset() + pos;
+        int rec = slot * RECORD_SIZE;
+        return Arrays.equals(data.array(), off, off + RECORD_SIZE,
+                             mRecords, rec, rec + RECORD_SIZE);
+    }
+
+    /** Whether the name field at pos matches the stored record. **/
+    synchronized boolean nameMatches(int slot, ByteBuffer data, int pos)
+    {
+        if (slot >= mValid.length || !mValid[slot])
+            return false;
+
+        int off = data.arrayOffset() + pos + 26;
+        int rec = slot * RECORD_SIZE + 26;
+        return Arrays.equals(data.array(), off, off + 16,
+                             mRecords, rec, rec + 16);
+    }
+
+    synchronized void remember(int slot, ByteBuffer data, int pos)
+    {
+        if (slot >= mValid.length) {
+            int size = mValid.length;
+            while (size <= slot) {
+                size = size * 2;
+            }
+            mRecords = Arrays.copyOf(mRecords, size * RECORD_SIZE);
+            mValid = Arrays.copyOf(mValid, size);
+        }
+
+        System.arraycopy(data.array(), data.arrayOffset() + pos,
+                         mRecords, slot * RECORD_SIZE, RECORD_SIZE);
+        mValid[slot] = true;
+    }
+
+    synchronized void invalidate(int slot)
+    {
+        if (slot < mValid.length)
+            mValid[slot] = false;
+    }
+}
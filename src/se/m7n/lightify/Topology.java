@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+/**
+ * Compact on-disk copy of the lights and groups of a gateway, so a new
+ * Connection can address them by name without a full discovery.
+ *
+ * Format, little-endian:
+ *   <4sHII  magic "LTFY", version, light count, group count
+ *   <QB16s  per light: address, type, name
+ *   <B16sH  per group: index, name, member count, followed by <Q per member
+ **/
+class Topology
+{
+    private static final int MAGIC = 0x5946544c; // "LTFY"
+    private static final short VERSION = 1;
+    private static final int NAME_SIZE = 16;
+
+    static void save(Connection conn, Path file) throws IOException
+    {
+        HashMap<String,Group> groups = conn.groups();
+        LongMap<Light> lights = conn.lights();
+
+        // Members are read once; a group list update may replace them meanwhile
+        Group[] saved = groups.values().toArray(new Group[groups.size()]);
+        Light.Address[][] members = new Light.Address[saved.length][];
+        int size = 14 + lights.size() * (9 + NAME_SIZE);
+        for (int i = 0; i < saved.length; i++) {
+            members[i] = saved[i].lights();
+            size = size + 3 + NAME_SIZE + members[i].length * 8;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.putInt(lights.size());
+        buf.putInt(saved.length);
+
+        for (Light light : lights.values()) {
+            buf.putLong(light.addr().value());
+            buf.put(light.type());
+            putName(buf, light.name());
+        }
+
+        for (int i = 0; i < saved.length; i++) {
+            buf.put(saved[i].idx());
+            putName(buf, saved[i].name());
+            buf.putShort((short)members[i].length);
+            for (Light.Address addr : members[i]) {
+                buf.putLong(addr.value());
+            }
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(tmp, buf.array());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void load(Connection conn, Path file) throws IOException
+    {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (buf.getInt() != MAGIC || buf.getShort() != VERSION)
+                throw new IOException("Not a topology file: " + file);
+
+            int numLights = buf.getInt();
+            int numGroups = buf.getInt();
+
+            LongMap<Light> lights = new LongMap<Light>(numLights);
+            for (int i = 0; i < numLights; i++) {
+                long addr = buf.getLong();
+                byte type = buf.get();
+                conn.restoreLight(lights, addr, getName(buf), type);
+            }
+            conn.publishLights(lights, null);
+
+            HashMap<String,Group> groups = new HashMap<String,Group>(numGroups);
+            for (int i = 0; i < numGroups; i++) {
+                byte idx = buf.get();
+                String name = getName(buf);
+                Light.Address[] members = new Light.Address[buf.getShort() & 0xffff];
+                for (int j = 0; j < members.length; j++) {
+                    members[j] = new Light.Address(buf.getLong());
+                }
+
+                Group group = new Group(conn, idx, name);
+                group.setLights(members);
+                groups.put(name, group);
+            }
+            conn.restoreGroups(groups);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated topology file: " + file, e);
+        }
+    }
+
+    private static void putName(ByteBuffer buf, String name)
+    {
+        byte[] raw = name.getBytes(StandardCharsets.US_ASCII);
+        int len = Math.min(raw.length, NAME_SIZE);
+        buf.put(raw, 0, len);
+        for (int i = len; i < NAME_SIZE; i++) {
+            buf.put((byte)0);
+        }
+    }
+
+    private static String getName(ByteBuffer buf)
+    {
+        byte[] raw = new byte[NAME_SIZE];
+        buf.get(raw);
+        return new String(raw, StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free ring buffer of the most recent raw frames sent and received
+ * by a Connection, installed with Connection.setTrace. Recording copies
+ * at most snapLength bytes of a frame and formats nothing; dump() does
+ * the formatting later. Without a trace installed, the cost is one null
+ * check per frame.
+ *
+ * Each slot carries a stamp: the sequence number of the frame in it,
+ * or BUSY while a writer fills it. A writer that finds its slot busy,
+ * because it has lapped a slow writer, drops its frame. Readers copy a
+ * slot and keep it only if the stamp did not change meanwhile.
+ **/
+public final class Trace
+{
+    public static final int SENT = 0;
+    public static final int RECEIVED = 1;
+
+    private static final long BUSY = -1;
+    private static final long EMPTY = -2;
+    private static final char[] DIRECTIONS = { '>', '<' };
+
+    private final int mMask;
+    private final int mSnap;
+    private final AtomicLong mNext;
+    private final AtomicLong mDropped;
+    private final AtomicLongArray mStamps;
+    private final long[] mTimes;
+    private final byte[] mDirections;
+    private final int[] mLengths;
+    private final byte[] mData;
+
+    /** Keep the last capacity frames, rounded up to a power of two. **/
+    public Trace(int capacity, int snapLength)
+    {
+        int size = 1;
+        while (size < capacity) {
+            size = size * 2;
+        }
+
+        mMask = size - 1;
+        mSnap = snapLength;
+        mNext = new AtomicLong();
+        mDropped = new AtomicLong();
+        mStamps = new AtomicLongArray(size);
+        mTimes = new long[size];
+        mDirections = new byte[size];
+        mLengths = new int[size];
+        mData = new byte[size * snapLength];
+
+        for (int i = 0; i < size; i++) {
+            mStamps.set(i, EMPTY);
+        }
+    }
+
+    /** Frames recorded so far, including those overwritten since. **/
+    public long recorded()
+    {
+        return mNext.get();
+    }
+
+    /** Frames lost to a busy slot. **/
+    public long dropped()
+    {
+        return mDropped.get();
+    }
+
+    /** Copy the frame between position and limit of frame; frame is left unchanged. **/
+    void record(int direction, ByteBuffer frame)
+    {
+        long seq = mNext.getAndIncrement();
+        int slot = (int)seq & mMask;
+        long stamp = mStamps.get(slot);
+
+        if (stamp == BUSY || !mStamps.compareAndSet(slot, stamp, BUSY)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        int pos = frame.position();
+        int len = Math.min(frame.remaining(), mSnap);
+        for (int i = 0; i < len; i++) {
+            mData[slot * mSnap + i] = frame.get(pos + i);
+        }
+        mTimes[slot] = System.nanoTime();
+        mDirections[slot] = (byte)direction;
+        mLengths[slot] = frame.remaining();
+
+        mStamps.set(slot, seq);
+    }
+
+    /**
+     * Write the frames still in the buffer, oldest first, one per line:
+     * sequence number, nanoTime, '>' for sent or '<' for received,
+     * length and the captured bytes in hex.
+     **/
+    public void dump(Appendable out) throws IOException
+    {
+        long next = mNext.get();
+        long first = Math.max(next - mMask - 1, 0);
+        byte[] data = new byte[mSnap];
+
+        for (long seq = first; seq < next; seq++) {
+            int slot = (int)seq & mMask;
+
+            if (mStamps.get(slot) != seq)
+                continue;
+            long time = mTimes[slot];
+            int direction = mDirections[slot];
+            int len = mLengths[slot];
+            System.arraycopy(mData, slot * mSnap, data, 0, mSnap);
+            VarHandle.acquireFence();
+            if (mStamps.get(slot) != seq)
+                continue;
+
+            out.append(Long.toString(seq)).append(' ')
+                .append(Long.toString(time)).append(' ')
+                .append(DIRECTIONS[direction]).append(' ')
+                .append(Integer.toString(len)).append(' ')
+                .append(Connection.toHexString(ByteBuffer.wrap(data, 0, Math.min(len, mSnap)).slice()))
+                .append('\n');
+        }
+    }
+}
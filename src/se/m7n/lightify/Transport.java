@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries frames between a Connection and its gateway. Received frames
+ * are handed to Connection.dispatch, and a broken link is reported with
+ * Connection.transportFailed.
+ **/
+abstract class Transport
+{
+    protected final Connection mConn;
+
+    protected Transport(Connection conn)
+    {
+        mConn = conn;
+    }
+
+    /**
+     * Write the bytes between position and limit of frame, or copy them
+     * for a later write. Only called by the WriteQueue writer, one
+     * thread at a time. Received frames are dispatched flipped.
+     **/
+    abstract void write(ByteBuffer frame) throws IOException;
+
+    /** True if write may block until the gateway reads. **/
+    abstract boolean blocks();
+
+    abstract void close() throws IOException;
+}
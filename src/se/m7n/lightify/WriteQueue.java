@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Mikael Magnusson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package se.m7n.lightify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free multi-producer, single-consumer ring of frames waiting to
+ * be written. Any thread may submit; the frame is handed over, not
+ * copied, and nothing is allocated per frame. When the transport may
+ * block in a write, a writer thread of the queue's own drains it, so
+ * no submitter ever waits for the socket; otherwise the submitter that
+ * finds the ring idle drains it, including frames added meanwhile.
+ * Either way the transport sees one writer at a time. Only when the
+ * ring is full, the gateway being that far behind, do submitters wait
+ * for the writer, and at most for the request timeout.
+ *
+ * Each slot carries a sequence number telling producers and the writer
+ * whose turn it is: a slot is free for the producer claiming ticket t
+ * when its sequence is t, and holds a frame for the writer when it is
+ * t + 1.
+ **/
+final class WriteQueue
+{
+    static final int CAPACITY = 1024;
+    // How long a submitter sleeps between looks at a full ring
+    private static final long FULL_WAIT = 50000;
+
+    private Connection mConn;
+    private Transport mTransport;
+    private FramePool mPool;
+    private ByteBuffer[] mSlots;
+    private AtomicLongArray mSeqs;
+    private AtomicLong mTail;
+    private AtomicInteger mWip;
+    // Next ticket to write; only touched by the writer
+    private long mHead;
+    // Null when submitters drain the ring themselves
+    private Thread mWriter;
+    private volatile boolean mClosed;
+
+    WriteQueue(Connection conn, Transport transport, FramePool pool, String name)
+    {
+        mConn = conn;
+        mTransport = transport;
+        mPool = pool;
+        mSlots = new ByteBuffer[CAPACITY];
+        mSeqs = new AtomicLongArray(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            mSeqs.set(i, i);
+        }
+        mTail = new AtomicLong();
+        mWip = new AtomicInteger();
+
+        if (transport.blocks()) {
+            mWriter = new Thread(() -> writeLoop(), "lightify-writer-" + name);
+            mWriter.setDaemon(true);
+            mWriter.start();
+        }
+    }
+
+    /** Stop the writer thread. Frames not yet written are dropped. **/
+    void close()
+    {
+        mClosed = true;
+        if (mWriter != null)
+            LockSupport.unpark(mWriter);
+    }
+
+    /**
+     * Queue frame for writing. The queue owns it from now on and
+     * returns it to the pool once written. Throws, leaving the frame
+     * with the caller, if the ring stays full for the request timeout.
+     **/
+    void submit(ByteBuffer frame) throws IOException
+    {
+        long giveUp = 0;
+
+        while (true) {
+            long ticket = mTail.get();
+            int slot = (int)ticket & (CAPACITY - 1);
+            long seq = mSeqs.get(slot);
+
+            if (seq == ticket) {
+                if (mTail.compareAndSet(ticket, ticket + 1)) {
+                    mSlots[slot] = frame;
+                    mSeqs.set(slot, ticket + 1);
+                    break;
+                }
+            } else if (seq < ticket) {
+                // Full, so a drain is under way
+                if (mClosed)
+                    throw new IOException("Connection closed");
+                long now = System.nanoTime();
+                if (giveUp == 0)
+                    giveUp = now + TimeUnit.MILLISECONDS.toNanos(mConn.timeout());
+                else if (now - giveUp > 0)
+                    throw new IOException("Write queue full, " + CAPACITY + " frames waiting");
+                LockSupport.parkNanos(FULL_WAIT);
+            }
+        }
+
+        if (mWip.getAndIncrement() == 0) {
+            if (mWriter != null)
+                LockSupport.unpark(mWriter);
+            else
+                drain();
+        }
+    }
+
+    private void writeLoop()
+    {
+        while (!mClosed) {
+            if (mWip.get() == 0)
+                LockSupport.park(this);
+            else
+                drain();
+        }
+    }
+
+    private void drain()
+    {
+        int missed = 1;
+
+        do {
+            while (true) {
+                int slot = (int)mHead & (CAPACITY - 1);
+                if (mSeqs.get(slot) != mHead + 1)
+                    break;
+
+                ByteBuffer frame = mSlots[slot];
+                mSlots[slot] = null;
+                mSeqs.set(slot, mHead + CAPACITY);
+                mHead++;
+
+                try {
+                    mTransport.write(frame);
+                } catch (IOException e) {
+                    mConn.writeFailed(frame, e);
+                }
+                if (frame.capacity() == FramePool.FRAME_SIZE)
+                    mPool.release(frame);
+            }
+            missed = mWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}